@@ -5,7 +5,9 @@ import java.io.IOException;
 import com.stuffwithstuff.magpie.Magpie;
 import com.stuffwithstuff.magpie.Method;
 import com.stuffwithstuff.magpie.SourceFile;
+import com.stuffwithstuff.magpie.compiler.Compiler;
 import com.stuffwithstuff.magpie.interpreter.Profiler;
+import com.stuffwithstuff.magpie.interpreter.Scheduler;
 
 public class MagpieApp {
 
@@ -20,6 +22,31 @@ public class MagpieApp {
     for (int i = 0; i < args.length; i++) {
       if (args[i].equals("-p")) {
         Profiler.setEnabled(true);
+      } else if (args[i].equals("-c")) {
+        // Compile every function the first time it's called.
+        Compiler.setEnabled(true);
+        Compiler.setCallThreshold(0);
+        Compiler.setBackEdgeThreshold(0);
+      } else if (args[i].equals("--interpret")) {
+        Compiler.setEnabled(false);
+      } else if (args[i].startsWith("--call-threshold=")) {
+        // Compile functions once they're hot.
+        int threshold = parseThreshold(args[i]);
+        if (threshold >= 0) {
+          Compiler.setEnabled(true);
+          Compiler.setCallThreshold(threshold);
+        }
+      } else if (args[i].startsWith("--loop-threshold=")) {
+        int threshold = parseThreshold(args[i]);
+        if (threshold >= 0) {
+          Compiler.setEnabled(true);
+          Compiler.setBackEdgeThreshold(threshold);
+        }
+      } else if (args[i].startsWith("--scheduler=")) {
+        String name = args[i].substring("--scheduler=".length());
+        if (!Scheduler.use(name)) {
+          System.out.println("Scheduler \"" + name + "\" is not available.");
+        }
       } else if (args[i].equals("--dumbrepl")) {
         niceRepl = false;
       } else {
@@ -61,9 +88,30 @@ public class MagpieApp {
     }
   }
   
+  /**
+   * Parses the number after the "=" in a threshold argument. Returns -1 if
+   * it isn't a valid threshold.
+   */
+  private static int parseThreshold(String arg) {
+    try {
+      int threshold = Integer.parseInt(arg.substring(arg.indexOf('=') + 1));
+      if (threshold >= 0) return threshold;
+    } catch (NumberFormatException ex) {
+      // Fall through to the error below.
+    }
+    
+    System.out.println("Invalid threshold: " + arg);
+    return -1;
+  }
+  
   private static void runScript(String path) {
     try {
       execute(path);
+      
+      // Let any routines the script started finish.
+      Scheduler.awaitRoutines();
+    } catch (InterruptedException e) {
+      // Do nothing.
     } catch (QuitException e) {
       // Do nothing.
     } catch (IOException ex) {
@@ -13,6 +13,13 @@ public class AssignExpr extends Expr {
   public String getName() { return mName; }
   public Expr getValue() { return mValue; }
   
+  /**
+   * Gets the local variable this name was statically resolved to, or null if
+   * it wasn't resolved and must be looked up by name.
+   */
+  public ResolvedName getResolved() { return mResolved; }
+  public void resolve(ResolvedName resolved) { mResolved = resolved; }
+  
   @Override
   public <R, C> R accept(ExprVisitor<R, C> visitor, C context) {
     return visitor.visit(this, context);
@@ -26,4 +33,5 @@ public class AssignExpr extends Expr {
 
   private final String mName;
   private final Expr mValue;
+  private ResolvedName mResolved;
 }
@@ -1,5 +1,6 @@
 package com.stuffwithstuff.magpie.ast;
 
+import com.stuffwithstuff.magpie.interpreter.CallSite;
 import com.stuffwithstuff.magpie.parser.Position;
 
 /**
@@ -11,10 +12,16 @@ public class CallExpr extends Expr {
 
     mName = name;
     mArg = arg;
+    mCallSite = new CallSite(name);
   }
 
-  public String getName()      { return mName; }
-  public Expr   getArg()       { return mArg; }
+  public String   getName()     { return mName; }
+  public Expr     getArg()      { return mArg; }
+  
+  /**
+   * Gets the inline cache the interpreter uses to dispatch this call.
+   */
+  public CallSite getCallSite() { return mCallSite; }
   
   @Override
   public <R, C> R accept(ExprVisitor<R, C> visitor, C context) {
@@ -34,4 +41,5 @@ public class CallExpr extends Expr {
 
   private final String mName;
   private final Expr mArg;
+  private final CallSite mCallSite;
 }
@@ -31,7 +31,15 @@ public class Field {
    */
   public Pattern getPattern() { return mPattern; }
   
+  /**
+   * Gets the layout of the local scope the initializer is evaluated in, or
+   * null if the field hasn't been resolved.
+   */
+  public ScopeLayout getLayout() { return mLayout; }
+  public void setLayout(ScopeLayout layout) { mLayout = layout; }
+  
   private final boolean  mIsMutable;
   private final Expr     mInitializer;
   private final Pattern  mPattern;
+  private ScopeLayout    mLayout;
 }
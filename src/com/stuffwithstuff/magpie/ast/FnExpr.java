@@ -1,6 +1,8 @@
 package com.stuffwithstuff.magpie.ast;
 
 import com.stuffwithstuff.magpie.ast.pattern.Pattern;
+import com.stuffwithstuff.magpie.compiler.ExecutionCounter;
+import com.stuffwithstuff.magpie.compiler.Node;
 import com.stuffwithstuff.magpie.parser.Position;
 import com.stuffwithstuff.magpie.util.Expect;
 
@@ -13,15 +15,40 @@ public class FnExpr extends Expr {
   }
   
   FnExpr(Position position, String doc, Pattern pattern, Expr body) {
+    this(position, doc, pattern, body, new ExecutionCounter());
+  }
+  
+  FnExpr(Position position, String doc, Pattern pattern, Expr body,
+      ExecutionCounter counter) {
     super(position, doc);
     Expect.notNull(pattern);
     mPattern = pattern;
     mBody = body;
+    mCounter = counter;
   }
   
   public Pattern getPattern() { return mPattern; }
   public Expr    getBody()    { return mBody; }
 
+  /**
+   * Gets the layout of the local scope created when the function is invoked,
+   * or null if the expression hasn't been resolved.
+   */
+  public ScopeLayout getLayout() { return mLayout; }
+  public void setLayout(ScopeLayout layout) { mLayout = layout; }
+  
+  /**
+   * Gets the counter that tracks how hot the function is.
+   */
+  public ExecutionCounter getCounter() { return mCounter; }
+  
+  /**
+   * Gets the compiled body of the function, or null if it hasn't been
+   * compiled.
+   */
+  public Node getCompiledBody() { return mCompiledBody; }
+  public void setCompiledBody(Node body) { mCompiledBody = body; }
+
   @Override
   public <R, C> R accept(ExprVisitor<R, C> visitor, C context) {
     return visitor.visit(this, context);
@@ -35,4 +62,7 @@ public class FnExpr extends Expr {
 
   private final Pattern  mPattern;
   private final Expr     mBody;
+  private final ExecutionCounter mCounter;
+  private ScopeLayout    mLayout;
+  private volatile Node  mCompiledBody;
 }
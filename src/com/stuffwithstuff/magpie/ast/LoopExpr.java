@@ -1,5 +1,6 @@
 package com.stuffwithstuff.magpie.ast;
 
+import com.stuffwithstuff.magpie.compiler.ExecutionCounter;
 import com.stuffwithstuff.magpie.parser.Position;
 
 /**
@@ -14,6 +15,21 @@ public class LoopExpr extends Expr {
   }
   
   public Expr getBody() { return mBody; }
+
+  /**
+   * Gets the layout of the local scope created for each iteration of
+   * the loop, or null if the
+   * expression hasn't been resolved.
+   */
+  public ScopeLayout getLayout() { return mLayout; }
+  public void setLayout(ScopeLayout layout) { mLayout = layout; }
+  
+  /**
+   * Gets the counter for the function that contains this loop, or null if
+   * the loop isn't inside a function.
+   */
+  public ExecutionCounter getCounter() { return mCounter; }
+  public void setCounter(ExecutionCounter counter) { mCounter = counter; }
   
   @Override
   public <R, C> R accept(ExprVisitor<R, C> visitor, C context) {
@@ -28,4 +44,6 @@ public class LoopExpr extends Expr {
   }
   
   private final Expr mBody;
+  private ScopeLayout mLayout;
+  private ExecutionCounter mCounter;
 }
@@ -15,6 +15,14 @@ public class MatchExpr extends Expr {
   
   public Expr            getValue() { return mValue; }
   public List<MatchCase> getCases() { return mCases; }
+
+  /**
+   * Gets the layout of the local scope that the matched value is
+   * evaluated in, or null if the
+   * expression hasn't been resolved.
+   */
+  public ScopeLayout getLayout() { return mLayout; }
+  public void setLayout(ScopeLayout layout) { mLayout = layout; }
   
   @Override
   public <R, C> R accept(ExprVisitor<R, C> visitor, C context) {
@@ -40,4 +48,5 @@ public class MatchExpr extends Expr {
 
   private final Expr mValue;
   private final List<MatchCase> mCases;
+  private ScopeLayout mLayout;
 }
@@ -1,6 +1,7 @@
 package com.stuffwithstuff.magpie.ast;
 
 import com.stuffwithstuff.magpie.ast.pattern.Pattern;
+import com.stuffwithstuff.magpie.compiler.ExecutionCounter;
 import com.stuffwithstuff.magpie.parser.Position;
 
 public class MethodExpr extends Expr {
@@ -15,6 +16,33 @@ public class MethodExpr extends Expr {
   public String getName() { return mName; }
   public Pattern getPattern() { return mPattern; }
   public Expr getBody() { return mBody; }
+
+  /**
+   * Gets the layout of the local scope created when the method is invoked,
+   * or null if the expression hasn't been resolved.
+   */
+  public ScopeLayout getLayout() { return mLayout; }
+  public void setLayout(ScopeLayout layout) { mLayout = layout; }
+  
+  /**
+   * Gets the counter that tracks how hot the method's body is.
+   */
+  public ExecutionCounter getCounter() { return mCounter; }
+  
+  /**
+   * Gets the function for the method's body. The same FnExpr is reused each
+   * time the method is defined so that it only has to be compiled once.
+   */
+  public FnExpr getFunction() {
+    if (mFunction == null) {
+      FnExpr function = new FnExpr(getPosition(), getDoc(), mPattern, mBody,
+          mCounter);
+      function.setLayout(mLayout);
+      mFunction = function;
+    }
+    
+    return mFunction;
+  }
   
   @Override
   public <R, C> R accept(ExprVisitor<R, C> visitor, C context) {
@@ -29,4 +57,7 @@ public class MethodExpr extends Expr {
   private final String mName;
   private final Pattern mPattern;
   private final Expr mBody;
+  private final ExecutionCounter mCounter = new ExecutionCounter();
+  private ScopeLayout mLayout;
+  private volatile FnExpr mFunction;
 }
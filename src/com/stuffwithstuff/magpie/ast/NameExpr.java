@@ -14,6 +14,13 @@ public class NameExpr extends Expr {
 
   public String getName()      { return mName; }
   
+  /**
+   * Gets the local variable this name was statically resolved to, or null if
+   * it wasn't resolved and must be looked up by name.
+   */
+  public ResolvedName getResolved() { return mResolved; }
+  public void resolve(ResolvedName resolved) { mResolved = resolved; }
+  
   @Override
   public <R, C> R accept(ExprVisitor<R, C> visitor, C context) {
     return visitor.visit(this, context);
@@ -25,4 +32,5 @@ public class NameExpr extends Expr {
   }
 
   private final String mName;
+  private ResolvedName mResolved;
 }
@@ -0,0 +1,31 @@
+package com.stuffwithstuff.magpie.ast;
+
+/**
+ * The result of statically resolving a variable name to a local variable. The
+ * variable lives in the scope "depth" levels up from where the name appears,
+ * in the given slot.
+ */
+public class ResolvedName {
+  public ResolvedName(ScopeLayout layout, int depth, int slot) {
+    mLayout = layout;
+    mDepth = depth;
+    mSlot = slot;
+  }
+
+  /**
+   * Gets the layout of the scope that declares the variable. This is used to
+   * make sure the scope found at runtime is the one the name resolved to.
+   */
+  public ScopeLayout getLayout() { return mLayout; }
+  public int getDepth() { return mDepth; }
+  public int getSlot() { return mSlot; }
+
+  @Override
+  public String toString() {
+    return mDepth + ":" + mSlot;
+  }
+
+  private final ScopeLayout mLayout;
+  private final int mDepth;
+  private final int mSlot;
+}
@@ -13,6 +13,14 @@ public class ReturnExpr extends Expr {
   
   public Expr getValue() { return mValue; }
   
+  /**
+   * Gets whether this is the last expression evaluated in the body of the
+   * function it returns from. If so, it doesn't need to unwind anything to
+   * return its value.
+   */
+  public boolean isTail() { return mIsTail; }
+  public void markTail() { mIsTail = true; }
+  
   @Override
   public <R, C> R accept(ExprVisitor<R, C> visitor, C context) {
     return visitor.visit(this, context);
@@ -25,4 +33,5 @@ public class ReturnExpr extends Expr {
   }
 
   private final Expr mValue;
+  private boolean mIsTail = false;
 }
@@ -14,6 +14,14 @@ public class ScopeExpr extends Expr {
   public Expr getBody() { return mBody; }
   public List<MatchCase> getCatches() { return mCatches; }
 
+  /**
+   * Gets the layout of the local scope that the body is evaluated
+   * in, or null if the
+   * expression hasn't been resolved.
+   */
+  public ScopeLayout getLayout() { return mLayout; }
+  public void setLayout(ScopeLayout layout) { mLayout = layout; }
+
   @Override
   public <R, C> R accept(ExprVisitor<R, C> visitor, C context) {
     return visitor.visit(this, context);
@@ -28,4 +36,5 @@ public class ScopeExpr extends Expr {
 
   private final Expr mBody;
   private final List<MatchCase> mCatches;
+  private ScopeLayout mLayout;
 }
@@ -0,0 +1,50 @@
+package com.stuffwithstuff.magpie.ast;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Describes the local variables declared in a single lexical scope, as
+ * determined by the Resolver. Each variable is assigned a slot index so that
+ * a Scope created from this layout can store its variables in an array
+ * instead of looking them up by name.
+ */
+public class ScopeLayout {
+  /**
+   * Declares a variable with the given name in this scope and returns its
+   * slot. If the name has already been declared, returns the existing slot.
+   */
+  public int declare(String name) {
+    int slot = find(name);
+    if (slot != -1) return slot;
+
+    mNames.add(name);
+    return mNames.size() - 1;
+  }
+
+  /**
+   * Gets the slot for the variable with the given name, or -1 if there is no
+   * variable with that name declared in this scope.
+   */
+  public int find(String name) {
+    for (int i = 0; i < mNames.size(); i++) {
+      if (mNames.get(i).equals(name)) return i;
+    }
+
+    return -1;
+  }
+
+  public String getName(int slot) { return mNames.get(slot); }
+
+  /**
+   * Gets the number of slots in this scope.
+   */
+  public int size() { return mNames.size(); }
+
+  @Override
+  public String toString() {
+    return mNames.toString();
+  }
+
+  private final List<String> mNames = new ArrayList<String>();
+}
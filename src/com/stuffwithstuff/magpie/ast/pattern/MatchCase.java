@@ -1,6 +1,7 @@
 package com.stuffwithstuff.magpie.ast.pattern;
 
 import com.stuffwithstuff.magpie.ast.Expr;
+import com.stuffwithstuff.magpie.ast.ScopeLayout;
 import com.stuffwithstuff.magpie.ast.pattern.Pattern;
 
 public class MatchCase {
@@ -16,6 +17,14 @@ public class MatchCase {
   public Pattern getPattern() { return mPattern; }
   public Expr    getBody()    { return mBody; }
   
+  /**
+   * Gets the layout of the local scope that the case's variables are bound
+   * in, or null if the case hasn't been resolved.
+   */
+  public ScopeLayout getLayout() { return mLayout; }
+  public void setLayout(ScopeLayout layout) { mLayout = layout; }
+  
   private final Pattern mPattern;
   private final Expr mBody;
+  private ScopeLayout mLayout;
 }
\ No newline at end of file
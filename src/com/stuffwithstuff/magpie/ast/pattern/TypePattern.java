@@ -2,6 +2,7 @@ package com.stuffwithstuff.magpie.ast.pattern;
 
 import com.stuffwithstuff.magpie.ast.Expr;
 import com.stuffwithstuff.magpie.ast.pattern.Pattern;
+import com.stuffwithstuff.magpie.interpreter.BoundType;
 
 public class TypePattern extends Pattern {
   TypePattern(Expr type) {
@@ -10,6 +11,13 @@ public class TypePattern extends Pattern {
   
   public Expr   getType() { return mType; }
   
+  /**
+   * Gets the class the type expression last evaluated to, so that testing the
+   * pattern doesn't have to look it up every time.
+   */
+  public BoundType getBoundType() { return mBoundType; }
+  public void setBoundType(BoundType boundType) { mBoundType = boundType; }
+  
   @Override
   public <R, C> R accept(PatternVisitor<R, C> visitor, C context) {
     return visitor.visit(this, context);
@@ -21,4 +29,5 @@ public class TypePattern extends Pattern {
   }
 
   private final Expr   mType;
+  private volatile BoundType mBoundType;
 }
\ No newline at end of file
@@ -0,0 +1,160 @@
+package com.stuffwithstuff.magpie.compiler;
+
+import com.stuffwithstuff.magpie.ast.CallExpr;
+import com.stuffwithstuff.magpie.interpreter.Callable;
+import com.stuffwithstuff.magpie.interpreter.CallSite;
+import com.stuffwithstuff.magpie.interpreter.ClassObj;
+import com.stuffwithstuff.magpie.interpreter.Context;
+import com.stuffwithstuff.magpie.interpreter.Multimethod;
+import com.stuffwithstuff.magpie.interpreter.Name;
+import com.stuffwithstuff.magpie.interpreter.Obj;
+import com.stuffwithstuff.magpie.interpreter.Scope;
+import com.stuffwithstuff.magpie.intrinsic.IntMethods.ArithmeticOperator;
+import com.stuffwithstuff.magpie.intrinsic.IntrinsicCallable;
+
+/**
+ * Calls a method with a (left, right) tuple argument. The first time it's
+ * called, it selects the method and specializes itself to call only that
+ * method as long as the arguments have the same classes. If the method is
+ * one of the arithmetic operators on Int, it does the arithmetic itself
+ * instead of calling it.
+ *
+ * <p>If the multimethod changes or the arguments have different classes, it
+ * rewrites itself to a generic call that uses the call site's cache.
+ */
+class CallNode extends SpecializingNode {
+  public CallNode(CallExpr expr, Node left, Node right) {
+    super(null);
+    mExpr = expr;
+    mCallSite = expr.getCallSite();
+    mLeft = left;
+    mRight = right;
+    rewrite(new Uninitialized());
+  }
+  
+  private Multimethod lookUpMultimethod(Context context, Scope scope) {
+    Multimethod multimethod = mCallSite.lookUpMultimethod(scope);
+    if (multimethod == null) {
+      throw context.error(Name.NO_METHOD_ERROR,
+          "Could not find a method named \"" + mExpr.getName() + "\". (" +
+          mExpr.getPosition() + ")");
+    }
+    
+    return multimethod;
+  }
+  
+  private Obj deoptimize(Context context, Multimethod multimethod, Obj left,
+      Obj right) {
+    rewrite(new Generic());
+    return mCallSite.invoke(context, multimethod, left, right);
+  }
+  
+  private class Uninitialized extends Node {
+    public Obj execute(Context context, Scope scope) {
+      Multimethod multimethod = lookUpMultimethod(context, scope);
+      Obj left = mLeft.execute(context, scope);
+      Obj right = mRight.execute(context, scope);
+      
+      // If the method depends on more than the argument classes, there's
+      // nothing to specialize on.
+      if (!multimethod.dispatchesOnClass(context)) {
+        return deoptimize(context, multimethod, left, right);
+      }
+      
+      int version = multimethod.getVersion();
+      Callable method = multimethod.select(mExpr.getName(), context, left,
+          right);
+      
+      if ((method instanceof IntrinsicCallable) &&
+          (((IntrinsicCallable)method).getIntrinsic() instanceof
+              ArithmeticOperator)) {
+        rewrite(new IntArithmetic(multimethod, version, left.getClassObj(),
+            right.getClassObj(),
+            (ArithmeticOperator)((IntrinsicCallable)method).getIntrinsic()));
+      } else {
+        rewrite(new Cached(multimethod, version, left.getClassObj(),
+            right.getClassObj(), method));
+      }
+      
+      return method.invoke(context, left, right);
+    }
+  }
+  
+  private class Cached extends Node {
+    public Cached(Multimethod multimethod, int version, ClassObj leftClass,
+        ClassObj rightClass, Callable method) {
+      mMultimethod = multimethod;
+      mVersion = version;
+      mLeftClass = leftClass;
+      mRightClass = rightClass;
+      mMethod = method;
+    }
+    
+    public Obj execute(Context context, Scope scope) {
+      Multimethod multimethod = lookUpMultimethod(context, scope);
+      Obj left = mLeft.execute(context, scope);
+      Obj right = mRight.execute(context, scope);
+      
+      if ((multimethod == mMultimethod) &&
+          (multimethod.getVersion() == mVersion) &&
+          (left.getClassObj() == mLeftClass) &&
+          (right.getClassObj() == mRightClass)) {
+        return mMethod.invoke(context, left, right);
+      }
+      
+      return deoptimize(context, multimethod, left, right);
+    }
+    
+    private final Multimethod mMultimethod;
+    private final int mVersion;
+    private final ClassObj mLeftClass;
+    private final ClassObj mRightClass;
+    private final Callable mMethod;
+  }
+  
+  private class IntArithmetic extends Node {
+    public IntArithmetic(Multimethod multimethod, int version,
+        ClassObj leftClass, ClassObj rightClass, ArithmeticOperator operator) {
+      mMultimethod = multimethod;
+      mVersion = version;
+      mLeftClass = leftClass;
+      mRightClass = rightClass;
+      mOperator = operator;
+    }
+    
+    public Obj execute(Context context, Scope scope) {
+      Multimethod multimethod = lookUpMultimethod(context, scope);
+      Obj left = mLeft.execute(context, scope);
+      Obj right = mRight.execute(context, scope);
+      
+      if ((multimethod == mMultimethod) &&
+          (multimethod.getVersion() == mVersion) &&
+          (left.getClassObj() == mLeftClass) &&
+          (right.getClassObj() == mRightClass)) {
+        return context.toObj(mOperator.perform(left.asInt(), right.asInt()));
+      }
+      
+      return deoptimize(context, multimethod, left, right);
+    }
+    
+    private final Multimethod mMultimethod;
+    private final int mVersion;
+    private final ClassObj mLeftClass;
+    private final ClassObj mRightClass;
+    private final ArithmeticOperator mOperator;
+  }
+  
+  private class Generic extends Node {
+    public Obj execute(Context context, Scope scope) {
+      Multimethod multimethod = lookUpMultimethod(context, scope);
+      Obj left = mLeft.execute(context, scope);
+      Obj right = mRight.execute(context, scope);
+      return mCallSite.invoke(context, multimethod, left, right);
+    }
+  }
+  
+  private final CallExpr mExpr;
+  private final CallSite mCallSite;
+  private final Node mLeft;
+  private final Node mRight;
+}
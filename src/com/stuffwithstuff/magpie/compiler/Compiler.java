@@ -0,0 +1,526 @@
+package com.stuffwithstuff.magpie.compiler;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import com.stuffwithstuff.magpie.ast.*;
+import com.stuffwithstuff.magpie.ast.pattern.MatchCase;
+import com.stuffwithstuff.magpie.ast.pattern.Pattern;
+import com.stuffwithstuff.magpie.interpreter.BreakException;
+import com.stuffwithstuff.magpie.interpreter.CallSite;
+import com.stuffwithstuff.magpie.interpreter.Context;
+import com.stuffwithstuff.magpie.interpreter.ErrorException;
+import com.stuffwithstuff.magpie.interpreter.Multimethod;
+import com.stuffwithstuff.magpie.interpreter.Name;
+import com.stuffwithstuff.magpie.interpreter.Obj;
+import com.stuffwithstuff.magpie.interpreter.PatternBinder;
+import com.stuffwithstuff.magpie.interpreter.PatternTester;
+import com.stuffwithstuff.magpie.interpreter.ReturnException;
+import com.stuffwithstuff.magpie.interpreter.Scope;
+import com.stuffwithstuff.magpie.util.Pair;
+
+/**
+ * Compiles the body of a function to a tree of Nodes. The nodes do exactly
+ * what ExprEvaluator would do for the same expressions, so a function can
+ * switch between being evaluated and executing its compiled body at any time.
+ * Expressions that are rarely executed in a hot function (class definitions,
+ * imports, quotations, etc.) just defer to the evaluator.
+ *
+ * <p>Functions start out being evaluated by ExprEvaluator, which already uses
+ * the resolved variable slots and call site caches. Each function counts its
+ * calls and loop iterations, and once either crosses its threshold, the
+ * function is compiled and runs its compiled body from then on. That way
+ * short scripts don't pay to compile code that only runs once.
+ *
+ * <p>Compiling is off unless it's turned on with {@link #setEnabled}, since
+ * any way the nodes differ from ExprEvaluator would change what a program
+ * does once a function gets hot.
+ */
+public class Compiler implements ExprVisitor<Node, Void> {
+  public static void setEnabled(boolean enable) {
+    sEnabled = enable;
+  }
+  
+  public static boolean isEnabled() {
+    return sEnabled;
+  }
+  
+  /**
+   * Sets the number of times a function must be called before it's compiled.
+   */
+  public static void setCallThreshold(int threshold) {
+    sCallThreshold = threshold;
+  }
+  
+  /**
+   * Sets the number of loop iterations a function must run before it's
+   * compiled.
+   */
+  public static void setBackEdgeThreshold(int threshold) {
+    sBackEdgeThreshold = threshold;
+  }
+  
+  /**
+   * Counts a call to the given function and returns its compiled body if it
+   * has one or is now hot enough to get one. Otherwise returns null and the
+   * function should be evaluated.
+   */
+  public static Node promote(FnExpr function) {
+    Node body = function.getCompiledBody();
+    if (body != null) return body;
+    
+    if (!sEnabled) return null;
+    
+    ExecutionCounter counter = function.getCounter();
+    counter.countCall();
+    if ((counter.getCalls() <= sCallThreshold) &&
+        (counter.getBackEdges() < sBackEdgeThreshold)) {
+      return null;
+    }
+    
+    // Two threads may both compile it, but that's harmless.
+    body = compile(function);
+    function.setCompiledBody(body);
+    return body;
+  }
+  
+  /**
+   * Compiles the body of the given function.
+   */
+  public static Node compile(FnExpr function) {
+    return new Compiler().compile(function.getBody());
+  }
+  
+  @Override
+  public Node visit(ArrayExpr expr, Void dummy) {
+    final Node[] elements = compileAll(expr.getElements());
+    
+    return new Node() {
+      public Obj execute(Context context, Scope scope) {
+        List<Obj> values = new ArrayList<Obj>();
+        for (int i = 0; i < elements.length; i++) {
+          values.add(elements[i].execute(context, scope));
+        }
+        
+        return context.toArray(values);
+      }
+    };
+  }
+
+  @Override
+  public Node visit(final AssignExpr expr, Void dummy) {
+    final Node value = compile(expr.getValue());
+    final String name = expr.getName();
+    final ResolvedName resolved = expr.getResolved();
+    
+    return new Node() {
+      public Obj execute(Context context, Scope scope) {
+        Obj result = value.execute(context, scope);
+        
+        // Try to assign to a local variable.
+        if (resolved != null) {
+          if (scope.assign(name, resolved, result)) return result;
+        } else {
+          if (scope.assign(name, result)) return result;
+        }
+        
+        throw context.error(Name.NO_VARIABLE_ERROR,
+            "Could not find a variable named \"" + name + "\".");
+      }
+    };
+  }
+
+  @Override
+  public Node visit(final BoolExpr expr, Void dummy) {
+    return new Node() {
+      public Obj execute(Context context, Scope scope) {
+        return context.toObj(expr.getValue());
+      }
+    };
+  }
+
+  @Override
+  public Node visit(BreakExpr expr, Void dummy) {
+    // Outside of a loop, "break" does nothing.
+    if (mLoopDepth == 0) return visit((NothingExpr)null, null);
+    
+    return new Node() {
+      public Obj execute(Context context, Scope scope) {
+        throw BreakException.INSTANCE;
+      }
+    };
+  }
+
+  @Override
+  public Node visit(final CallExpr expr, Void dummy) {
+    final CallSite callSite = expr.getCallSite();
+    
+    // Most calls pass a (left, right) tuple, so compile each side directly
+    // instead of building a record. Those calls also specialize themselves
+    // to the method they end up calling.
+    if (isTuple(expr.getArg())) {
+      List<Pair<String, Expr>> fields = ((RecordExpr)expr.getArg()).getFields();
+      return new CallNode(expr, compile(fields.get(0).getValue()),
+          compile(fields.get(1).getValue()));
+    }
+    
+    final Node arg = compile(expr.getArg());
+    return new Node() {
+      public Obj execute(Context context, Scope scope) {
+        Multimethod multimethod = lookUpMultimethod(context, expr, scope);
+        return callSite.invoke(context, multimethod,
+            arg.execute(context, scope));
+      }
+    };
+  }
+
+  @Override
+  public Node visit(ClassExpr expr, Void dummy) {
+    return evaluate(expr);
+  }
+
+  @Override
+  public Node visit(final FnExpr expr, Void dummy) {
+    // The function's own body is compiled when it's called.
+    return new Node() {
+      public Obj execute(Context context, Scope scope) {
+        return context.toFunction(expr, scope);
+      }
+    };
+  }
+
+  @Override
+  public Node visit(ImportExpr expr, Void dummy) {
+    return evaluate(expr);
+  }
+
+  @Override
+  public Node visit(final IntExpr expr, Void dummy) {
+    return new Node() {
+      public Obj execute(Context context, Scope scope) {
+        return context.toObj(expr.getValue());
+      }
+    };
+  }
+
+  @Override
+  public Node visit(final LoopExpr expr, Void dummy) {
+    mLoopDepth++;
+    final Node body = compile(expr.getBody());
+    mLoopDepth--;
+    
+    return new Node() {
+      public Obj execute(Context context, Scope scope) {
+        try {
+          // Loop forever. A "break" will throw a BreakException to escape.
+          while (true) {
+            // Evaluate the body in its own scope.
+            body.execute(context, scope.push(expr.getLayout()));
+          }
+        } catch (BreakException ex) {
+          // Nothing to do.
+        }
+        
+        return context.nothing();
+      }
+    };
+  }
+
+  @Override
+  public Node visit(final MatchExpr expr, Void dummy) {
+    final Node value = compile(expr.getValue());
+    final CompiledCase[] cases = compileCases(expr.getCases());
+    
+    return new Node() {
+      public Obj execute(Context context, Scope scope) {
+        // Push a new scope so that a variable declared in the value
+        // expression itself disappears after the match.
+        scope = scope.push(expr.getLayout());
+        
+        Obj result = value.execute(context, scope);
+        
+        // Try each pattern until we get a match.
+        Obj matched = executeCases(context, result, cases, scope);
+        if (matched != null) return matched;
+        
+        // If we got here, no patterns matched.
+        throw context.error(Name.NO_MATCH_ERROR,
+            "Could not find a match for \"" +
+            context.getInterpreter().evaluateToString(result) + "\" (" +
+            expr.getPosition() + ").");
+      }
+    };
+  }
+
+  @Override
+  public Node visit(MethodExpr expr, Void dummy) {
+    return evaluate(expr);
+  }
+
+  @Override
+  public Node visit(final NameExpr expr, Void dummy) {
+    // Local variables are read straight from their slot.
+    if (expr.getResolved() != null) return new LocalNode(expr);
+    
+    final String name = expr.getName();
+    
+    return new Node() {
+      public Obj execute(Context context, Scope scope) {
+        Obj variable = scope.lookUp(name);
+        if (variable != null) return variable;
+        
+        throw context.error(Name.NO_VARIABLE_ERROR,
+            "Could not find a variable named \"" + name + "\" (" +
+            expr.getPosition() + ").");
+      }
+    };
+  }
+
+  @Override
+  public Node visit(NothingExpr expr, Void dummy) {
+    return new Node() {
+      public Obj execute(Context context, Scope scope) {
+        return context.nothing();
+      }
+    };
+  }
+
+  @Override
+  public Node visit(QuoteExpr expr, Void dummy) {
+    return evaluate(expr);
+  }
+
+  @Override
+  public Node visit(RecordExpr expr, Void dummy) {
+    final List<String> keys = new ArrayList<String>();
+    List<Expr> values = new ArrayList<Expr>();
+    for (Pair<String, Expr> field : expr.getFields()) {
+      keys.add(field.getKey());
+      values.add(field.getValue());
+    }
+    
+    final Node[] fields = compileAll(values);
+    
+    return new Node() {
+      public Obj execute(Context context, Scope scope) {
+        Map<String, Obj> values = new HashMap<String, Obj>();
+        for (int i = 0; i < fields.length; i++) {
+          values.put(keys.get(i), fields[i].execute(context, scope));
+        }
+        
+        // The record keeps the key list, so it can't be shared.
+        return context.toObj(new ArrayList<String>(keys), values);
+      }
+    };
+  }
+
+  @Override
+  public Node visit(ReturnExpr expr, Void dummy) {
+    final Node value = compile(expr.getValue());
+    
+    // If the return is the last thing the function evaluates, its value is
+    // already the function's result.
+    if (expr.isTail()) return value;
+    
+    return new Node() {
+      public Obj execute(Context context, Scope scope) {
+        throw new ReturnException(value.execute(context, scope));
+      }
+    };
+  }
+
+  @Override
+  public Node visit(final ScopeExpr expr, Void dummy) {
+    final Node body = compile(expr.getBody());
+    final CompiledCase[] catches = compileCases(expr.getCatches());
+    
+    return new Node() {
+      public Obj execute(Context context, Scope scope) {
+        try {
+          scope = scope.push(expr.getLayout());
+          return body.execute(context, scope);
+        } catch (ErrorException err) {
+          // See if we can catch it here.
+          Obj result = executeCases(context, err.getError(), catches, scope);
+          if (result != null) return result;
+          
+          // Not caught here, so just keep unwinding.
+          throw err;
+        }
+      }
+    };
+  }
+
+  @Override
+  public Node visit(SequenceExpr expr, Void dummy) {
+    final Node[] exprs = compileAll(expr.getExpressions());
+    
+    return new Node() {
+      public Obj execute(Context context, Scope scope) {
+        // Evaluate all of the expressions and return the last.
+        Obj result = null;
+        for (int i = 0; i < exprs.length; i++) {
+          result = exprs[i].execute(context, scope);
+        }
+        
+        return result;
+      }
+    };
+  }
+
+  @Override
+  public Node visit(final StringExpr expr, Void dummy) {
+    return new Node() {
+      public Obj execute(Context context, Scope scope) {
+        return context.toObj(expr.getValue());
+      }
+    };
+  }
+
+  @Override
+  public Node visit(ThrowExpr expr, Void dummy) {
+    final Node value = compile(expr.getValue());
+    
+    return new Node() {
+      public Obj execute(Context context, Scope scope) {
+        throw new ErrorException(value.execute(context, scope));
+      }
+    };
+  }
+
+  @Override
+  public Node visit(UnquoteExpr expr, Void dummy) {
+    return evaluate(expr);
+  }
+
+  @Override
+  public Node visit(final VarExpr expr, Void dummy) {
+    final Node value = compile(expr.getValue());
+    
+    return new Node() {
+      public Obj execute(Context context, Scope scope) {
+        Obj result = value.execute(context, scope);
+        
+        if (!PatternTester.test(context, expr.getPattern(), result, scope)) {
+          context.error(Name.NO_MATCH_ERROR, "The variable pattern \"" +
+              expr.getPattern() +
+              "\" does not match the initialized value \"" +
+              context.getInterpreter().evaluateToString(result) + "\" (" +
+              expr.getPosition() + ").");
+        }
+        
+        PatternBinder.bind(context, expr.isMutable(), expr.getPattern(),
+            result, scope);
+        return result;
+      }
+    };
+  }
+  
+  private Compiler() {
+  }
+  
+  private Node compile(Expr expr) {
+    // A missing expression evaluates to null, like in ExprEvaluator.
+    if (expr == null) {
+      return new Node() {
+        public Obj execute(Context context, Scope scope) {
+          return null;
+        }
+      };
+    }
+    
+    return expr.accept(this, null);
+  }
+  
+  private Node[] compileAll(List<Expr> exprs) {
+    Node[] nodes = new Node[exprs.size()];
+    for (int i = 0; i < nodes.length; i++) {
+      nodes[i] = compile(exprs.get(i));
+    }
+    
+    return nodes;
+  }
+  
+  private CompiledCase[] compileCases(List<MatchCase> cases) {
+    if (cases == null) return null;
+    
+    CompiledCase[] compiled = new CompiledCase[cases.size()];
+    for (int i = 0; i < compiled.length; i++) {
+      compiled[i] = new CompiledCase(cases.get(i),
+          compile(cases.get(i).getBody()));
+    }
+    
+    return compiled;
+  }
+  
+  /**
+   * Creates a node that just evaluates the expression using the interpreter.
+   */
+  private Node evaluate(final Expr expr) {
+    return new Node() {
+      public Obj execute(Context context, Scope scope) {
+        return context.evaluate(expr, scope);
+      }
+    };
+  }
+  
+  /**
+   * Returns true if the expression is a record of exactly two positional
+   * fields.
+   */
+  private static boolean isTuple(Expr expr) {
+    if (!(expr instanceof RecordExpr)) return false;
+    
+    List<Pair<String, Expr>> fields = ((RecordExpr)expr).getFields();
+    return (fields.size() == 2) &&
+        fields.get(0).getKey().equals(Name.getTupleField(0)) &&
+        fields.get(1).getKey().equals(Name.getTupleField(1));
+  }
+  
+  private static Multimethod lookUpMultimethod(Context context, CallExpr expr,
+      Scope scope) {
+    Multimethod multimethod = expr.getCallSite().lookUpMultimethod(scope);
+    if (multimethod == null) {
+      throw context.error(Name.NO_METHOD_ERROR,
+          "Could not find a method named \"" + expr.getName() + "\". (" +
+          expr.getPosition() + ")");
+    }
+    
+    return multimethod;
+  }
+  
+  private static Obj executeCases(Context context, Obj value,
+      CompiledCase[] cases, Scope scope) {
+    if (cases == null) return null;
+    
+    for (int i = 0; i < cases.length; i++) {
+      Pattern pattern = cases[i].matchCase.getPattern();
+      if (PatternTester.test(context, pattern, value, scope)) {
+        // Matched. Bind variables and evaluate the body.
+        scope = scope.push(cases[i].matchCase.getLayout());
+        PatternBinder.bind(context, false, pattern, value, scope);
+        return cases[i].body.execute(context, scope);
+      }
+    }
+    
+    return null;
+  }
+  
+  private static class CompiledCase {
+    public CompiledCase(MatchCase matchCase, Node body) {
+      this.matchCase = matchCase;
+      this.body = body;
+    }
+    
+    final MatchCase matchCase;
+    final Node body;
+  }
+  
+  private static boolean sEnabled = false;
+  private static int sCallThreshold = 1000;
+  private static int sBackEdgeThreshold = 10000;
+  
+  private int mLoopDepth = 0;
+}
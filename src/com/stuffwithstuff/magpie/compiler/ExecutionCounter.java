@@ -0,0 +1,31 @@
+package com.stuffwithstuff.magpie.compiler;
+
+/**
+ * Counts how many times a function has been called and how many times the
+ * loops in its body have gone around. The Compiler uses this to decide when
+ * a function is hot enough to be worth compiling.
+ *
+ * <p>The counts aren't synchronized. If two threads race, a few counts get
+ * lost, which just means the function gets promoted a little later.
+ */
+public class ExecutionCounter {
+  public int getCalls() { return mCalls; }
+  public int getBackEdges() { return mBackEdges; }
+  
+  public void countCall() {
+    // Stop counting when it would overflow.
+    if (mCalls < Integer.MAX_VALUE) mCalls++;
+  }
+  
+  public void countBackEdge() {
+    if (mBackEdges < Integer.MAX_VALUE) mBackEdges++;
+  }
+  
+  @Override
+  public String toString() {
+    return mCalls + " calls, " + mBackEdges + " back edges";
+  }
+  
+  private int mCalls = 0;
+  private int mBackEdges = 0;
+}
@@ -0,0 +1,46 @@
+package com.stuffwithstuff.magpie.compiler;
+
+import com.stuffwithstuff.magpie.ast.NameExpr;
+import com.stuffwithstuff.magpie.interpreter.Context;
+import com.stuffwithstuff.magpie.interpreter.Name;
+import com.stuffwithstuff.magpie.interpreter.Obj;
+import com.stuffwithstuff.magpie.interpreter.Scope;
+
+/**
+ * Reads a local variable that the Resolver assigned a slot to. It assumes the
+ * variable will always be bound in that slot and reads it directly. If it
+ * ever isn't, the node rewrites itself to look the variable up the way
+ * ExprEvaluator does.
+ */
+class LocalNode extends SpecializingNode {
+  public LocalNode(NameExpr expr) {
+    super(null);
+    mExpr = expr;
+    rewrite(new Slot());
+  }
+  
+  private class Slot extends Node {
+    public Obj execute(Context context, Scope scope) {
+      Obj value = scope.getSlot(mExpr.getResolved());
+      if (value != null) return value;
+      
+      // Deoptimize.
+      Node generic = new Generic();
+      rewrite(generic);
+      return generic.execute(context, scope);
+    }
+  }
+  
+  private class Generic extends Node {
+    public Obj execute(Context context, Scope scope) {
+      Obj value = scope.lookUp(mExpr.getName(), mExpr.getResolved());
+      if (value != null) return value;
+      
+      throw context.error(Name.NO_VARIABLE_ERROR,
+          "Could not find a variable named \"" + mExpr.getName() + "\" (" +
+          mExpr.getPosition() + ").");
+    }
+  }
+  
+  private final NameExpr mExpr;
+}
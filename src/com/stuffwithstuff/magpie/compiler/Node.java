@@ -0,0 +1,19 @@
+package com.stuffwithstuff.magpie.compiler;
+
+import com.stuffwithstuff.magpie.interpreter.Context;
+import com.stuffwithstuff.magpie.interpreter.Obj;
+import com.stuffwithstuff.magpie.interpreter.Scope;
+
+/**
+ * A compiled expression. Where ExprEvaluator has to look at each expression
+ * and decide what to do with it every time it's evaluated, a Node is created
+ * once for each expression and only knows how to execute that one. Chaining
+ * them together gives the JVM a tree of small, monomorphic calls that it can
+ * inline and optimize.
+ */
+public abstract class Node {
+  /**
+   * Executes the node in the given scope and returns the result.
+   */
+  public abstract Obj execute(Context context, Scope scope);
+}
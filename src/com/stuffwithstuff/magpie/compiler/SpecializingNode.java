@@ -0,0 +1,42 @@
+package com.stuffwithstuff.magpie.compiler;
+
+import com.stuffwithstuff.magpie.interpreter.Context;
+import com.stuffwithstuff.magpie.interpreter.Obj;
+import com.stuffwithstuff.magpie.interpreter.Scope;
+
+/**
+ * A node that rewrites itself as it runs. It delegates to its current
+ * implementation, which starts out uninitialized. The first time it executes,
+ * it looks at the values it gets and rewrites the node to an implementation
+ * specialized for them. If the specialized implementation later sees
+ * something it didn't assume, it rewrites the node to a generic
+ * implementation that handles everything, and the node stays that way.
+ *
+ * <p>Every implementation checks its own assumptions, so if two threads race
+ * to rewrite the node, whichever one wins is still correct.
+ */
+public abstract class SpecializingNode extends Node {
+  @Override
+  public Obj execute(Context context, Scope scope) {
+    return mNode.execute(context, scope);
+  }
+  
+  /**
+   * Gets the current implementation of this node. Mainly useful for tests and
+   * debugging.
+   */
+  public Node getImplementation() { return mNode; }
+  
+  protected SpecializingNode(Node node) {
+    mNode = node;
+  }
+  
+  /**
+   * Replaces the current implementation of this node.
+   */
+  protected void rewrite(Node node) {
+    mNode = node;
+  }
+  
+  private Node mNode;
+}
@@ -0,0 +1,29 @@
+package com.stuffwithstuff.magpie.interpreter;
+
+/**
+ * The class that a type pattern's type expression evaluated to in a given
+ * scope. As long as no variable referring to a class has been bound in that
+ * scope or one enclosing it since, evaluating it in that scope again will
+ * give the same class.
+ */
+public class BoundType {
+  public BoundType(Scope scope, ClassObj type) {
+    mScope = scope;
+    mVersion = scope.getClassVersion();
+    mType = type;
+  }
+  
+  /**
+   * Gets the bound class if it is still valid for the given scope, or null if
+   * the type expression needs to be evaluated again.
+   */
+  public ClassObj get(Scope scope) {
+    if (scope != mScope) return null;
+    if (mVersion != scope.getClassVersion()) return null;
+    return mType;
+  }
+  
+  private final Scope mScope;
+  private final int mVersion;
+  private final ClassObj mType;
+}
@@ -7,4 +7,20 @@ package com.stuffwithstuff.magpie.interpreter;
  */
 @SuppressWarnings("serial")
 public class BreakException extends RuntimeException {
+  /**
+   * Since a break doesn't carry any data, the same one is thrown every time.
+   */
+  public static final BreakException INSTANCE = new BreakException();
+  
+  /**
+   * This is only used for control flow and is always caught, so there's no
+   * stack trace to capture.
+   */
+  @Override
+  public Throwable fillInStackTrace() {
+    return this;
+  }
+  
+  private BreakException() {
+  }
 }
\ No newline at end of file
@@ -0,0 +1,154 @@
+package com.stuffwithstuff.magpie.interpreter;
+
+/**
+ * An inline cache for a single call expression. It remembers the multimethod
+ * the name refers to and the last few methods that were selected, keyed on
+ * the classes of the argument's fields. Most call sites only ever see one or
+ * two combinations of classes, so this lets them skip walking the method
+ * graph.
+ */
+public class CallSite {
+  public CallSite(String name) {
+    mName = name;
+  }
+  
+  /**
+   * Looks up the multimethod this call refers to in the given scope. Returns
+   * null if there is no multimethod with that name.
+   */
+  public Multimethod lookUpMultimethod(Scope scope) {
+    // Local multimethods may shadow the global one, and are different each
+    // time their scope is created, so they aren't cached.
+    Multimethod multimethod = scope.lookUpLocalMultimethod(mName);
+    if (multimethod != null) return multimethod;
+    
+    // Once a global multimethod is defined, the name will always refer to it.
+    multimethod = mGlobal;
+    if (multimethod == null) {
+      multimethod = scope.lookUpGlobalMultimethod(mName);
+      mGlobal = multimethod;
+    }
+    
+    return multimethod;
+  }
+  
+  public Obj invoke(Context context, Multimethod multimethod, Obj arg) {
+    if (!multimethod.dispatchesOnClass(context)) {
+      return multimethod.invoke(mName, context, arg);
+    }
+    
+    ClassObj leftClass = classOf(arg.getField(0));
+    ClassObj rightClass = classOf(arg.getField(1));
+    int version = multimethod.getVersion();
+    
+    Callable method = find(multimethod, version, leftClass, rightClass);
+    if (method == null) {
+      method = multimethod.select(mName, context, arg);
+      remember(multimethod, version, leftClass, rightClass, method);
+    }
+    
+    return method.invoke(context, arg);
+  }
+  
+  /**
+   * Invokes the multimethod with a (left, right) tuple argument, without
+   * creating the tuple.
+   */
+  public Obj invoke(Context context, Multimethod multimethod, Obj left,
+      Obj right) {
+    if (!multimethod.dispatchesOnClass(context)) {
+      return multimethod.invoke(mName, context, left, right);
+    }
+    
+    ClassObj leftClass = left.getClassObj();
+    ClassObj rightClass = right.getClassObj();
+    int version = multimethod.getVersion();
+    
+    Callable method = find(multimethod, version, leftClass, rightClass);
+    if (method == null) {
+      method = multimethod.select(mName, context, left, right);
+      remember(multimethod, version, leftClass, rightClass, method);
+    }
+    
+    return method.invoke(context, left, right);
+  }
+  
+  /**
+   * Finds the method previously selected for the given classes, or returns
+   * null if there isn't one.
+   */
+  private Callable find(Multimethod multimethod, int version,
+      ClassObj leftClass, ClassObj rightClass) {
+    Entry[] entries = mEntries;
+    for (int i = 0; i < entries.length; i++) {
+      Entry entry = entries[i];
+      if ((entry.multimethod == multimethod) &&
+          (entry.version == version) &&
+          (entry.leftClass == leftClass) &&
+          (entry.rightClass == rightClass)) {
+        return entry.method;
+      }
+    }
+    
+    return null;
+  }
+  
+  private void remember(Multimethod multimethod, int version,
+      ClassObj leftClass, ClassObj rightClass, Callable method) {
+    // Stale entries are replaced first. If the call site has seen too many
+    // different classes, stop caching and always do a full select.
+    Entry[] entries = mEntries;
+    Entry entry = new Entry(multimethod, version, leftClass, rightClass,
+        method);
+    int stale = -1;
+    for (int i = 0; i < entries.length; i++) {
+      if (entries[i].version != version ||
+          entries[i].multimethod != multimethod) {
+        stale = i;
+        break;
+      }
+    }
+    
+    if (stale != -1) {
+      Entry[] updated = entries.clone();
+      updated[stale] = entry;
+      mEntries = updated;
+    } else if (entries.length < MAX_ENTRIES) {
+      Entry[] updated = new Entry[entries.length + 1];
+      System.arraycopy(entries, 0, updated, 0, entries.length);
+      updated[entries.length] = entry;
+      mEntries = updated;
+    }
+  }
+  
+  private static ClassObj classOf(Obj value) {
+    if (value == null) return null;
+    return value.getClassObj();
+  }
+  
+  private static class Entry {
+    public Entry(Multimethod multimethod, int version, ClassObj leftClass,
+        ClassObj rightClass, Callable method) {
+      this.multimethod = multimethod;
+      this.version = version;
+      this.leftClass = leftClass;
+      this.rightClass = rightClass;
+      this.method = method;
+    }
+    
+    final Multimethod multimethod;
+    final int version;
+    final ClassObj leftClass;
+    final ClassObj rightClass;
+    final Callable method;
+  }
+  
+  private static final int MAX_ENTRIES = 4;
+  
+  private final String mName;
+  
+  // Routines may run the same call site on different threads, so the entries
+  // are never modified in place. Instead, a new array is published.
+  private volatile Multimethod mGlobal;
+  private volatile Entry[] mEntries = new Entry[0];
+}
@@ -8,6 +8,13 @@ import com.stuffwithstuff.magpie.ast.pattern.Pattern;
  */
 public interface Callable {
   Obj invoke(Context context, Obj arg);
+  
+  /**
+   * Invokes the callable with an argument that is a (left, right) tuple.
+   * This is how almost all methods are called, so callables should handle it
+   * without creating the tuple if they can.
+   */
+  Obj invoke(Context context, Obj left, Obj right);
   Pattern getPattern();
   Scope getClosure();
   String getDoc();
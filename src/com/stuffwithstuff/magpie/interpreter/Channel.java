@@ -1,23 +1,499 @@
 package com.stuffwithstuff.magpie.interpreter;
 
-import java.util.concurrent.LinkedBlockingQueue;
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.locks.LockSupport;
 
+/**
+ * A queue that routines use to send values to each other. There are three
+ * kinds of channels:
+ *
+ * <ul>
+ * <li>Unbounded channels never block the sender.</li>
+ * <li>Buffered channels hold up to a given number of values in a lock-free
+ *     ring buffer. Sending to a full one blocks until there's room.</li>
+ * <li>Rendezvous channels (capacity zero) don't hold any values. Sending
+ *     blocks until a receiver takes the value.</li>
+ * </ul>
+ *
+ * <p>Sending and receiving never lock. A routine that has to wait registers
+ * itself on the channel and parks, and whoever makes progress possible wakes
+ * one waiter. A waiter that is woken and makes progress itself passes the
+ * wake on if there's still more to do, so a wake never gets lost when the
+ * routine that got it doesn't use it (for example, because a select took a
+ * value from a different channel).
+ */
 public class Channel {
+  /**
+   * Creates an unbounded channel.
+   */
   public Channel() {
-    mQueue = new LinkedBlockingQueue<Obj>();
+    mBuffer = new LinkedBuffer();
   }
-  
+
+  /**
+   * Creates a channel that holds up to the given number of values. If the
+   * capacity is zero, it's a rendezvous channel.
+   */
   public Channel(int capacity) {
-    mQueue = new LinkedBlockingQueue<Obj>(capacity);
+    if (capacity > 0) {
+      mBuffer = new RingBuffer(capacity);
+    } else {
+      mBuffer = null;
+    }
   }
-  
+
   public void send(Obj obj) throws InterruptedException {
-    mQueue.put(obj);
+    if (mBuffer == null) {
+      handOff(obj);
+      return;
+    }
+
+    while (true) {
+      // Don't bother registering if there's room.
+      if (trySend(obj)) return;
+
+      Waiter waiter = new Waiter();
+      mSenders.add(waiter);
+      try {
+        // Check again in case a value was received before we registered.
+        if (trySend(obj)) return;
+
+        waiter.park(NO_DEADLINE);
+      } finally {
+        mSenders.remove(waiter);
+
+        // If we were woken but are leaving without sending, let another
+        // sender have the room.
+        if (waiter.isWoken() && !mBuffer.isFull()) wake(mSenders);
+      }
+    }
+  }
+
+  /**
+   * Sends the value if it can be done without blocking. Returns true if it
+   * was sent.
+   */
+  public boolean trySend(Obj obj) {
+    if (mBuffer == null) {
+      // A rendezvous channel can only send to a receiver that's already
+      // waiting, and it can't tell if one is going to take it.
+      return false;
+    }
+
+    if (!mBuffer.offer(obj)) return false;
+
+    wake(mReceivers);
+    if (!mBuffer.isFull()) wake(mSenders);
+    return true;
+  }
+
+  /**
+   * Sends all of the given values in order. Waiters are only woken once for
+   * the whole batch instead of once for each value.
+   */
+  public void sendAll(List<Obj> objs) throws InterruptedException {
+    int sent = 0;
+    if (mBuffer != null) {
+      while ((sent < objs.size()) && mBuffer.offer(objs.get(sent))) sent++;
+      
+      if (sent > 0) {
+        wake(mReceivers);
+        if (!mBuffer.isFull()) wake(mSenders);
+      }
+    }
+    
+    // If the buffer filled up (or there isn't one), send the rest one at a
+    // time as room is made for them.
+    for (int i = sent; i < objs.size(); i++) send(objs.get(i));
   }
   
   public Obj receive() throws InterruptedException {
-    return mQueue.take();
+    return receiveBefore(NO_DEADLINE);
   }
   
-  private final LinkedBlockingQueue<Obj> mQueue;
+  /**
+   * Waits until there's at least one value and then receives as many as are
+   * available, up to the given maximum, into the given list. Returns the
+   * number of values received.
+   */
+  public int receiveUpTo(int max, List<Obj> objs) throws InterruptedException {
+    if (max <= 0) return 0;
+    
+    objs.add(receive());
+    return 1 + drainTo(max - 1, objs);
+  }
+  
+  /**
+   * Receives all of the values that are available without waiting, up to the
+   * given maximum, into the given list. Returns the number of values
+   * received.
+   */
+  public int drainTo(int max, List<Obj> objs) {
+    int received = 0;
+    if (mBuffer != null) {
+      Obj obj;
+      while ((received < max) && ((obj = mBuffer.poll()) != null)) {
+        objs.add(obj);
+        received++;
+      }
+      
+      if (received > 0) {
+        wake(mSenders);
+        if (hasValue()) wake(mReceivers);
+      }
+    } else {
+      Obj obj;
+      while ((received < max) && ((obj = tryReceive()) != null)) {
+        objs.add(obj);
+        received++;
+      }
+    }
+    
+    return received;
+  }
+
+  /**
+   * Receives a value, waiting at most the given number of milliseconds for
+   * one to be sent. Returns null if it times out.
+   */
+  public Obj receive(long timeout) throws InterruptedException {
+    return receiveBefore(deadline(timeout));
+  }
+
+  /**
+   * Receives a value if there is one. Otherwise returns null.
+   */
+  public Obj tryReceive() {
+    Obj obj;
+    if (mBuffer != null) {
+      obj = mBuffer.poll();
+      if (obj == null) return null;
+
+      wake(mSenders);
+    } else {
+      obj = takeOffer();
+      if (obj == null) return null;
+    }
+
+    if (hasValue()) wake(mReceivers);
+    return obj;
+  }
+
+  /**
+   * Receives a value from whichever of the given channels has one first,
+   * waiting at most the given number of milliseconds. A negative timeout
+   * waits forever. Returns the index of the channel that a value was received
+   * from, and stores the value in the first element of result. Returns -1 if
+   * it times out.
+   */
+  public static int select(List<Channel> channels, long timeout, Obj[] result)
+      throws InterruptedException {
+    long deadline = (timeout < 0) ? NO_DEADLINE : deadline(timeout);
+
+    // Start at a different channel each time so that an early channel can't
+    // starve the later ones.
+    int start = (channels.size() == 0) ? 0 :
+        (sSelectStart.getAndIncrement() & Integer.MAX_VALUE) % channels.size();
+
+    while (true) {
+      int index = trySelect(channels, start, result);
+      if (index != -1) return index;
+
+      if (isExpired(deadline)) return -1;
+
+      Waiter waiter = new Waiter();
+      for (Channel channel : channels) channel.mReceivers.add(waiter);
+      try {
+        // Check again in case a value was sent before we registered.
+        index = trySelect(channels, start, result);
+        if (index != -1) return index;
+
+        waiter.park(deadline);
+      } finally {
+        for (Channel channel : channels) {
+          channel.mReceivers.remove(waiter);
+
+          // We may have been woken by a channel we didn't receive from. If so,
+          // wake someone else to receive from it.
+          if (waiter.isWoken() && channel.hasValue()) {
+            wake(channel.mReceivers);
+          }
+        }
+      }
+    }
+  }
+
+  private Obj receiveBefore(long deadline) throws InterruptedException {
+    while (true) {
+      // Don't bother registering if there's already a value.
+      Obj obj = tryReceive();
+      if (obj != null) return obj;
+
+      if (isExpired(deadline)) return null;
+
+      Waiter waiter = new Waiter();
+      mReceivers.add(waiter);
+      try {
+        // Check again in case a value was sent before we registered.
+        obj = tryReceive();
+        if (obj != null) return obj;
+
+        waiter.park(deadline);
+      } finally {
+        mReceivers.remove(waiter);
+
+        // If we were woken but are leaving without receiving, let another
+        // receiver have the value.
+        if (waiter.isWoken() && hasValue()) wake(mReceivers);
+      }
+    }
+  }
+
+  private static int trySelect(List<Channel> channels, int start,
+      Obj[] result) {
+    for (int i = 0; i < channels.size(); i++) {
+      int index = (start + i) % channels.size();
+      Obj obj = channels.get(index).tryReceive();
+      if (obj != null) {
+        result[0] = obj;
+        return index;
+      }
+    }
+
+    return -1;
+  }
+
+  /**
+   * Sends a value on a rendezvous channel by waiting until a receiver takes
+   * it.
+   */
+  private void handOff(Obj obj) throws InterruptedException {
+    Offer offer = new Offer(obj);
+    mOffers.add(offer);
+    wake(mReceivers);
+
+    try {
+      while (!offer.isTaken()) offer.waiter.park(NO_DEADLINE);
+    } catch (InterruptedException ex) {
+      // If a receiver took it before we could cancel, it was still sent.
+      if (offer.cancel()) {
+        mOffers.remove(offer);
+        throw ex;
+      }
+
+      Thread.currentThread().interrupt();
+    }
+  }
+
+  private Obj takeOffer() {
+    Offer offer;
+    while ((offer = mOffers.poll()) != null) {
+      if (offer.take()) return offer.value;
+    }
+
+    return null;
+  }
+
+  /**
+   * Returns true if there may be a value ready to be received.
+   */
+  private boolean hasValue() {
+    if (mBuffer != null) return !mBuffer.isEmpty();
+    return !mOffers.isEmpty();
+  }
+
+  private static void wake(ConcurrentLinkedQueue<Waiter> waiters) {
+    Waiter waiter = waiters.poll();
+    if (waiter != null) waiter.wake();
+  }
+
+  private static long deadline(long timeout) {
+    return System.nanoTime() + timeout * 1000000L;
+  }
+
+  private static boolean isExpired(long deadline) {
+    return (deadline != NO_DEADLINE) && (System.nanoTime() - deadline >= 0);
+  }
+
+  /**
+   * A routine waiting for something to happen on a channel.
+   */
+  private static class Waiter {
+    public boolean isWoken() { return mWoken; }
+
+    public void wake() {
+      mWoken = true;
+      LockSupport.unpark(mThread);
+    }
+
+    /**
+     * Parks the current thread until this is woken or the deadline passes.
+     */
+    public void park(final long deadline) throws InterruptedException {
+      Scheduler.await(new Scheduler.Blocker<Void>() {
+        protected Void perform() throws InterruptedException {
+          while (!mWoken) {
+            if (Thread.interrupted()) throw new InterruptedException();
+
+            if (deadline == NO_DEADLINE) {
+              LockSupport.park(Waiter.this);
+            } else {
+              long remaining = deadline - System.nanoTime();
+              if (remaining <= 0) break;
+              LockSupport.parkNanos(Waiter.this, remaining);
+            }
+          }
+
+          return null;
+        }
+      });
+    }
+
+    private final Thread mThread = Thread.currentThread();
+    private volatile boolean mWoken = false;
+  }
+
+  /**
+   * A value waiting to be taken from a rendezvous channel.
+   */
+  private static class Offer {
+    public Offer(Obj value) {
+      this.value = value;
+    }
+
+    public boolean isTaken() { return mState.get() == TAKEN; }
+
+    public boolean take() {
+      if (!mState.compareAndSet(WAITING, TAKEN)) return false;
+
+      waiter.wake();
+      return true;
+    }
+
+    public boolean cancel() {
+      return mState.compareAndSet(WAITING, CANCELLED);
+    }
+
+    final Obj value;
+    final Waiter waiter = new Waiter();
+
+    private static final int WAITING = 0;
+    private static final int TAKEN = 1;
+    private static final int CANCELLED = 2;
+
+    private final AtomicInteger mState = new AtomicInteger(WAITING);
+  }
+
+  private interface Buffer {
+    boolean offer(Obj obj);
+    Obj poll();
+    boolean isEmpty();
+    boolean isFull();
+  }
+
+  private static class LinkedBuffer implements Buffer {
+    public boolean offer(Obj obj) { return mQueue.offer(obj); }
+    public Obj poll() { return mQueue.poll(); }
+    public boolean isEmpty() { return mQueue.isEmpty(); }
+    public boolean isFull() { return false; }
+
+    private final ConcurrentLinkedQueue<Obj> mQueue =
+        new ConcurrentLinkedQueue<Obj>();
+  }
+
+  /**
+   * A bounded multiple-producer, multiple-consumer queue. Each slot has a
+   * sequence number that says whether it's ready to be written or read for a
+   * given position, so producers and consumers only ever compete on a
+   * compare-and-set of the head or tail.
+   */
+  private static class RingBuffer implements Buffer {
+    public RingBuffer(int capacity) {
+      mCapacity = capacity;
+      mItems = new AtomicReferenceArray<Obj>(capacity);
+      mSequences = new AtomicLongArray(capacity);
+      for (int i = 0; i < capacity; i++) mSequences.set(i, i);
+    }
+
+    public boolean offer(Obj obj) {
+      long position = mTail.get();
+      while (true) {
+        int index = (int)(position % mCapacity);
+        long difference = mSequences.get(index) - position;
+
+        if (difference == 0) {
+          // The slot is free, so try to claim it.
+          if (mTail.compareAndSet(position, position + 1)) {
+            mItems.lazySet(index, obj);
+            mSequences.set(index, position + 1);
+            return true;
+          }
+          position = mTail.get();
+        } else if (difference < 0) {
+          // The slot hasn't been read since the last time around, so it's
+          // full.
+          return false;
+        } else {
+          // Another sender got here first.
+          position = mTail.get();
+        }
+      }
+    }
+
+    public Obj poll() {
+      long position = mHead.get();
+      while (true) {
+        int index = (int)(position % mCapacity);
+        long difference = mSequences.get(index) - (position + 1);
+
+        if (difference == 0) {
+          // The slot has been written, so try to claim it.
+          if (mHead.compareAndSet(position, position + 1)) {
+            Obj obj = mItems.get(index);
+            mItems.lazySet(index, null);
+            mSequences.set(index, position + mCapacity);
+            return obj;
+          }
+          position = mHead.get();
+        } else if (difference < 0) {
+          // Nothing has been written to it yet, so it's empty.
+          return null;
+        } else {
+          // Another receiver got here first.
+          position = mHead.get();
+        }
+      }
+    }
+
+    public boolean isEmpty() {
+      return mHead.get() >= mTail.get();
+    }
+
+    public boolean isFull() {
+      return mTail.get() - mHead.get() >= mCapacity;
+    }
+
+    private final int mCapacity;
+    private final AtomicReferenceArray<Obj> mItems;
+    private final AtomicLongArray mSequences;
+    private final AtomicLong mHead = new AtomicLong();
+    private final AtomicLong mTail = new AtomicLong();
+  }
+
+  private static final long NO_DEADLINE = Long.MIN_VALUE;
+  private static final AtomicInteger sSelectStart = new AtomicInteger();
+
+  // Null for a rendezvous channel.
+  private final Buffer mBuffer;
+  private final ConcurrentLinkedQueue<Offer> mOffers =
+      new ConcurrentLinkedQueue<Offer>();
+  private final ConcurrentLinkedQueue<Waiter> mReceivers =
+      new ConcurrentLinkedQueue<Waiter>();
+  private final ConcurrentLinkedQueue<Waiter> mSenders =
+      new ConcurrentLinkedQueue<Waiter>();
 }
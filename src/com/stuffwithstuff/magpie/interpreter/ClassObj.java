@@ -33,6 +33,22 @@ public class ClassObj extends Obj {
   public String getDoc() { return mDoc; }
   public Multimethod getInitMethod() { return mInit; }
   
+  /**
+   * Gets the shape that new instances of this class start with. It has room
+   * for every field declared by this class and its parents.
+   */
+  public Shape getInstanceShape() {
+    if (mInstanceShape == null) {
+      Shape shape = Shape.EMPTY;
+      for (String field : getAllFieldNames()) {
+        shape = shape.with(field);
+      }
+      mInstanceShape = shape;
+    }
+    
+    return mInstanceShape;
+  }
+  
   /**
    * Gets whether or not this class is a subclass (or same class) as the given
    * parent.
@@ -76,6 +92,16 @@ public class ClassObj extends Obj {
     return mName;
   }
   
+  private Set<String> getAllFieldNames() {
+    Set<String> names = new LinkedHashSet<String>();
+    names.addAll(mFields.keySet());
+    for (ClassObj parent : mParents) {
+      names.addAll(parent.getAllFieldNames());
+    }
+    
+    return names;
+  }
+  
   private ClassObj checkForCollisions(Set<ClassObj> reachedClasses,
       ClassObj classObj) {
     for (ClassObj parent : classObj.getParents()) {
@@ -96,4 +122,5 @@ public class ClassObj extends Obj {
   private final Map<String, FieldObj> mFields;
   private final String mDoc;
   private Multimethod mInit;
+  private Shape mInstanceShape;
 }
@@ -12,5 +12,14 @@ public class ErrorException extends RuntimeException {
   
   public Obj getError() { return mError; }
   
+  /**
+   * Magpie errors are frequently thrown and caught by Magpie code, and the
+   * Java stack of the interpreter isn't useful to it, so don't capture it.
+   */
+  @Override
+  public Throwable fillInStackTrace() {
+    return this;
+  }
+  
   private final Obj mError;
 }
\ No newline at end of file
@@ -0,0 +1,225 @@
+package com.stuffwithstuff.magpie.interpreter;
+
+import java.io.IOException;
+import java.nio.channels.CancelledKeyException;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.SelectableChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Waits for non-blocking channels (sockets, mostly) to be ready. A single
+ * thread runs a {@link Selector} for all of them. A routine that can't make
+ * progress on a channel calls {@link #await} and is parked until the channel
+ * is ready, so one thread watches any number of idle connections instead of
+ * tying up a thread for each.
+ *
+ * <p>Channels passed in here must be in non-blocking mode.
+ */
+public class EventLoop {
+  /**
+   * Parks the current routine until the channel is ready for one of the given
+   * operations (a combination of {@link SelectionKey} OP_ flags), or until it
+   * is closed through {@link #close}.
+   */
+  public static void await(final SelectableChannel channel, int ops)
+      throws IOException, InterruptedException {
+    final Interest interest = new Interest(channel, ops);
+    get().submit(interest);
+
+    Scheduler.await(new Scheduler.Blocker<Void>() {
+      protected Void perform() throws InterruptedException {
+        while (!interest.isReady()) {
+          if (Thread.interrupted()) throw new InterruptedException();
+          LockSupport.park(interest);
+        }
+
+        return null;
+      }
+    });
+
+    if (!channel.isOpen()) throw new ClosedChannelException();
+  }
+
+  /**
+   * Closes the channel and wakes up any routines waiting on it.
+   */
+  public static void close(SelectableChannel channel) throws IOException {
+    // Grab the key first. Once the channel is closed, the selector may forget
+    // about it before we get a chance to wake the waiters.
+    EventLoop loop = get();
+    SelectionKey key = channel.keyFor(loop.mSelector);
+    channel.close();
+
+    if (key != null) loop.submit(new Interest(key));
+  }
+
+  private static synchronized EventLoop get() throws IOException {
+    if (sLoop == null) sLoop = new EventLoop();
+    return sLoop;
+  }
+
+  private EventLoop() throws IOException {
+    mSelector = Selector.open();
+
+    Thread thread = new Thread(new Runnable() {
+      public void run() {
+        loop();
+      }
+    }, "magpie-event-loop");
+
+    // Don't keep the process alive just because someone opened a socket.
+    thread.setDaemon(true);
+    thread.start();
+  }
+
+  private void submit(Interest interest) {
+    // Channels can only be registered safely from the selector's own thread,
+    // so hand it over and wake it up.
+    mPending.add(interest);
+    mSelector.wakeup();
+  }
+
+  private void loop() {
+    while (true) {
+      try {
+        mSelector.select();
+      } catch (IOException e) {
+        // TODO(bob): How should this be handled?
+        continue;
+      }
+
+      Interest interest;
+      while ((interest = mPending.poll()) != null) {
+        register(interest);
+      }
+
+      Iterator<SelectionKey> keys = mSelector.selectedKeys().iterator();
+      while (keys.hasNext()) {
+        SelectionKey key = keys.next();
+        keys.remove();
+
+        try {
+          wakeReady(key, key.readyOps());
+        } catch (CancelledKeyException e) {
+          // The channel was closed by another thread while we were looking
+          // at it.
+          wakeAll(key);
+        }
+      }
+    }
+  }
+
+  @SuppressWarnings("unchecked")
+  private void register(Interest interest) {
+    // An interest with just a key means the channel was closed.
+    if (interest.key != null) {
+      wakeAll(interest.key);
+      return;
+    }
+
+    if (!interest.channel.isOpen()) {
+      interest.wake();
+      return;
+    }
+
+    try {
+      SelectionKey key = interest.channel.keyFor(mSelector);
+      if (key == null) {
+        key = interest.channel.register(mSelector, 0,
+            new ArrayList<Interest>());
+      }
+
+      ((List<Interest>) key.attachment()).add(interest);
+      key.interestOps(key.interestOps() | interest.ops);
+    } catch (IOException e) {
+      // The channel was closed out from under us. Let the waiter find out
+      // when it tries to use it.
+      interest.wake();
+    } catch (RuntimeException e) {
+      // Likewise if the key was cancelled.
+      interest.wake();
+    }
+  }
+
+  /**
+   * Wakes up the routines waiting on any of the ready operations and stops
+   * listening for the operations no one is waiting on anymore.
+   */
+  @SuppressWarnings("unchecked")
+  private void wakeReady(SelectionKey key, int readyOps) {
+    List<Interest> interests = (List<Interest>) key.attachment();
+
+    int ops = 0;
+    Iterator<Interest> iterator = interests.iterator();
+    while (iterator.hasNext()) {
+      Interest interest = iterator.next();
+      if ((interest.ops & readyOps) != 0) {
+        iterator.remove();
+        interest.wake();
+      } else {
+        ops |= interest.ops;
+      }
+    }
+
+    key.interestOps(ops);
+  }
+
+  @SuppressWarnings("unchecked")
+  private void wakeAll(SelectionKey key) {
+    List<Interest> interests = (List<Interest>) key.attachment();
+    for (Interest interest : interests) {
+      interest.wake();
+    }
+
+    interests.clear();
+    key.cancel();
+  }
+
+  /**
+   * A routine waiting for a channel to be ready.
+   */
+  private static class Interest {
+    public Interest(SelectableChannel channel, int ops) {
+      this.channel = channel;
+      this.ops = ops;
+      this.key = null;
+    }
+
+    /**
+     * Creates an interest that wakes everyone waiting on the given key's
+     * channel because it has been closed.
+     */
+    public Interest(SelectionKey key) {
+      this.channel = key.channel();
+      this.ops = 0;
+      this.key = key;
+    }
+
+    public boolean isReady() { return mReady; }
+
+    public void wake() {
+      mReady = true;
+      LockSupport.unpark(mThread);
+    }
+
+    public final SelectableChannel channel;
+    public final int ops;
+    public final SelectionKey key;
+
+    private final Thread mThread = Thread.currentThread();
+    private volatile boolean mReady = false;
+  }
+
+  private static EventLoop sLoop;
+
+  private final Selector mSelector;
+  private final Queue<Interest> mPending =
+      new ConcurrentLinkedQueue<Interest>();
+}
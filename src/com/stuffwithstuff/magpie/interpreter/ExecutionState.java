@@ -0,0 +1,63 @@
+package com.stuffwithstuff.magpie.interpreter;
+
+import java.util.Stack;
+
+/**
+ * The state the interpreter tracks while it's executing code on a single
+ * thread: the objects being constructed, the modules being loaded, etc. Each
+ * thread running Magpie code gets its own so that routines running at the
+ * same time don't step on each other.
+ *
+ * <p>Code that runs on another thread (a routine, a parallel map, etc.)
+ * takes a {@link #fork} of the state where it was started and installs it
+ * with {@link Interpreter#swapState} while it runs.
+ */
+public class ExecutionState {
+  /**
+   * Creates a new state for code started from this one. It is loading the
+   * same modules, so relative imports work the same, but isn't constructing
+   * anything or comparing objects.
+   */
+  public ExecutionState fork() {
+    ExecutionState state = new ExecutionState();
+    state.mLoadingModules.addAll(mLoadingModules);
+    return state;
+  }
+  
+  /**
+   * Gets the object currently being constructed.
+   */
+  public Obj getConstructing() { return mConstructing.peek(); }
+  
+  public void pushConstructing(Obj obj) { mConstructing.push(obj); }
+  public void popConstructing() { mConstructing.pop(); }
+  
+  /**
+   * Gets the number of initializers that have been entered but haven't yet
+   * reached the canonical initializer.
+   */
+  public int getInitializingCount() { return mInitializingCount; }
+  
+  public void beginInitializing() { mInitializingCount++; }
+  public void finishInitializing() { mInitializingCount--; }
+  
+  /**
+   * Gets whether this thread is in the middle of dispatching a call to "=="
+   * to compare two objects.
+   */
+  public boolean isInObjectsEqual() { return mInObjectsEqual; }
+  public void setInObjectsEqual(boolean value) { mInObjectsEqual = value; }
+  
+  /**
+   * Gets the module currently being loaded.
+   */
+  public Module getLoadingModule() { return mLoadingModules.peek(); }
+  
+  public void pushLoadingModule(Module module) { mLoadingModules.push(module); }
+  public void popLoadingModule() { mLoadingModules.pop(); }
+  
+  private final Stack<Obj> mConstructing = new Stack<Obj>();
+  private int mInitializingCount = 0;
+  private boolean mInObjectsEqual = false;
+  private final Stack<Module> mLoadingModules = new Stack<Module>();
+}
@@ -9,6 +9,7 @@ import java.util.Set;
 import com.stuffwithstuff.magpie.ast.*;
 import com.stuffwithstuff.magpie.ast.pattern.MatchCase;
 import com.stuffwithstuff.magpie.ast.pattern.Pattern;
+import com.stuffwithstuff.magpie.compiler.ExecutionCounter;
 import com.stuffwithstuff.magpie.intrinsic.IntrinsicLoader;
 import com.stuffwithstuff.magpie.util.Pair;
 
@@ -49,7 +50,11 @@ public class ExprEvaluator implements ExprVisitor<Obj, Scope> {
     Obj value = evaluate(expr.getValue(), scope);
 
     // Try to assign to a local variable.
-    if (scope.assign(expr.getName(), value)) return value;
+    if (expr.getResolved() != null) {
+      if (scope.assign(expr.getName(), expr.getResolved(), value)) return value;
+    } else {
+      if (scope.assign(expr.getName(), value)) return value;
+    }
     
     // TODO(bob): Detect this statically.
     throw mContext.error("NoVariableError",
@@ -65,22 +70,32 @@ public class ExprEvaluator implements ExprVisitor<Obj, Scope> {
   public Obj visit(BreakExpr expr, Scope scope) {
     // Outside of a loop, "break" does nothing.
     if (mLoopDepth > 0) {
-      throw new BreakException();
+      throw BreakException.INSTANCE;
     }
     return mContext.nothing();
   }
   
   @Override
   public Obj visit(CallExpr expr, Scope scope) {
-    Multimethod multimethod = scope.lookUpMultimethod(expr.getName());
+    CallSite callSite = expr.getCallSite();
+    Multimethod multimethod = callSite.lookUpMultimethod(scope);
     if (multimethod == null) {
       throw mContext.error(Name.NO_METHOD_ERROR,
           "Could not find a method named \"" + expr.getName() + "\". (" +
           expr.getPosition() + ")");
     }
 
+    // Most calls pass a (left, right) tuple. Evaluate each side directly
+    // instead of building a record.
+    if (isTuple(expr.getArg())) {
+      List<Pair<String, Expr>> fields = ((RecordExpr)expr.getArg()).getFields();
+      Obj left = evaluate(fields.get(0).getValue(), scope);
+      Obj right = evaluate(fields.get(1).getValue(), scope);
+      return callSite.invoke(mContext, multimethod, left, right);
+    }
+    
     Obj arg = evaluate(expr.getArg(), scope);
-    return multimethod.invoke(expr.getName(), mContext, arg);
+    return callSite.invoke(mContext, multimethod, arg);
   }
   
   @Override
@@ -171,9 +186,13 @@ public class ExprEvaluator implements ExprVisitor<Obj, Scope> {
 
       // Loop forever. A "break" expression will throw a BreakException to
       // escape this loop.
+      ExecutionCounter counter = expr.getCounter();
       while (true) {
         // Evaluate the body in its own scope.
-        evaluate(expr.getBody(), scope.push());
+        evaluate(expr.getBody(), scope.push(expr.getLayout()));
+        
+        // Track how hot the function containing the loop is.
+        if (counter != null) counter.countBackEdge();
       }
     } catch (BreakException ex) {
       // Nothing to do.
@@ -194,7 +213,7 @@ public class ExprEvaluator implements ExprVisitor<Obj, Scope> {
     // ...
     // end
     // i should be gone here
-    scope = scope.push();
+    scope = scope.push(expr.getLayout());
     
     Obj value = evaluate(expr.getValue(), scope);
     
@@ -211,10 +230,7 @@ public class ExprEvaluator implements ExprVisitor<Obj, Scope> {
   @Override
   public Obj visit(MethodExpr expr, Scope scope) {
     if (expr.getBody() != null) {
-      Function method = new Function(
-          Expr.fn(expr.getPosition(), expr.getDoc(),
-              expr.getPattern(), expr.getBody()),
-          scope);
+      Function method = new Function(expr.getFunction(), scope);
       
       scope.define(expr.getName(), method);
     } else {
@@ -227,7 +243,12 @@ public class ExprEvaluator implements ExprVisitor<Obj, Scope> {
 
   @Override
   public Obj visit(NameExpr expr, Scope scope) {
-    Obj variable = scope.lookUp(expr.getName());
+    Obj variable;
+    if (expr.getResolved() != null) {
+      variable = scope.lookUp(expr.getName(), expr.getResolved());
+    } else {
+      variable = scope.lookUp(expr.getName());
+    }
     if (variable != null) return variable;
     
     // TODO(bob): Detect this statically.
@@ -267,13 +288,18 @@ public class ExprEvaluator implements ExprVisitor<Obj, Scope> {
   @Override
   public Obj visit(ReturnExpr expr, Scope scope) {
     Obj value = evaluate(expr.getValue(), scope);
+    
+    // If the return is the last thing the function evaluates, its value is
+    // already the function's result, so there's no need to unwind.
+    if (expr.isTail()) return value;
+    
     throw new ReturnException(value);
   }
 
   @Override
   public Obj visit(ScopeExpr expr, Scope scope) {
     try {
-      scope = scope.push();
+      scope = scope.push(expr.getLayout());
       return evaluate(expr.getBody(), scope);
     } catch (ErrorException err) {
       // See if we can catch it here.
@@ -329,6 +355,19 @@ public class ExprEvaluator implements ExprVisitor<Obj, Scope> {
     return value;
   }
 
+  /**
+   * Returns true if the expression is a record of exactly two positional
+   * fields.
+   */
+  private boolean isTuple(Expr expr) {
+    if (!(expr instanceof RecordExpr)) return false;
+    
+    List<Pair<String, Expr>> fields = ((RecordExpr)expr).getFields();
+    return (fields.size() == 2) &&
+        fields.get(0).getKey().equals(Name.getTupleField(0)) &&
+        fields.get(1).getKey().equals(Name.getTupleField(1));
+  }
+  
   private Obj evaluateCases(Obj value, List<MatchCase> cases, Scope scope) {
     if (cases == null) return null;
     
@@ -336,7 +375,7 @@ public class ExprEvaluator implements ExprVisitor<Obj, Scope> {
       Pattern pattern = matchCase.getPattern();
       if (PatternTester.test(mContext, pattern, value, scope)) {
         // Matched. Bind variables and evaluate the body.
-        scope = scope.push();
+        scope = scope.push(matchCase.getLayout());
         PatternBinder.bind(mContext, false, pattern, value, scope);
         return evaluate(matchCase.getBody(), scope);
       }
@@ -0,0 +1,56 @@
+package com.stuffwithstuff.magpie.interpreter;
+
+/**
+ * Gets and sets a single named field on objects. Remembers where the field is
+ * stored in the last shape of object it saw, so that accessing the same field
+ * on objects of the same class doesn't need to look up the name.
+ */
+public class FieldCache {
+  public FieldCache(String name) {
+    mName = name;
+  }
+  
+  /**
+   * Gets the value of the field on the given object, or null if it doesn't
+   * have it.
+   */
+  public Obj get(Obj obj) {
+    int index = indexOf(obj);
+    if (index == -1) return null;
+    return obj.getFieldAt(index);
+  }
+  
+  public void set(Obj obj, Obj value) {
+    int index = indexOf(obj);
+    if (index == -1) {
+      // The object doesn't have room for the field yet.
+      obj.setField(mName, value);
+    } else {
+      obj.setFieldAt(index, value);
+    }
+  }
+  
+  private int indexOf(Obj obj) {
+    Shape shape = obj.getShape();
+    Entry entry = mEntry;
+    if ((entry == null) || (entry.shape != shape)) {
+      entry = new Entry(shape, shape.indexOf(mName));
+      mEntry = entry;
+    }
+    
+    return entry.index;
+  }
+  
+  private static class Entry {
+    public Entry(Shape shape, int index) {
+      this.shape = shape;
+      this.index = index;
+    }
+    
+    final Shape shape;
+    final int index;
+  }
+  
+  private final String mName;
+  private volatile Entry mEntry;
+}
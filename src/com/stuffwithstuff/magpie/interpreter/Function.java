@@ -1,7 +1,12 @@
 package com.stuffwithstuff.magpie.interpreter;
 
+import java.util.Map;
+
 import com.stuffwithstuff.magpie.ast.FnExpr;
 import com.stuffwithstuff.magpie.ast.pattern.Pattern;
+import com.stuffwithstuff.magpie.ast.pattern.RecordPattern;
+import com.stuffwithstuff.magpie.compiler.Compiler;
+import com.stuffwithstuff.magpie.compiler.Node;
 
 /**
  * Wraps a raw FnExpr in the data and logic needed to execute a user-defined
@@ -11,6 +16,18 @@ public class Function implements Callable {
   public Function(FnExpr function, Scope scope) {
     mFunction = function;
     mScope = scope;
+    
+    // Most functions are methods whose pattern is a (left, right) tuple. If
+    // so, find the pattern for each side so that they can be bound without
+    // having to create the tuple.
+    if (function.getPattern() instanceof RecordPattern) {
+      Map<String, Pattern> fields =
+          ((RecordPattern)function.getPattern()).getFields();
+      if (fields.size() == 2) {
+        mLeftPattern = fields.get(Name.getTupleField(0));
+        mRightPattern = fields.get(Name.getTupleField(1));
+      }
+    }
   }
 
   @Override
@@ -19,18 +36,36 @@ public class Function implements Callable {
       Profiler.push(mFunction.getPosition());
       
       // Create a local scope for the function.
-      Scope scope = mScope.push();
+      Scope scope = mScope.push(mFunction.getLayout());
       
       // Bind the arguments to the pattern.
       Pattern pattern = mFunction.getPattern();
       PatternBinder.bind(context, false, pattern, arg, scope);
       
-      try {
-        return context.evaluate(mFunction.getBody(), scope);
-      } catch (ReturnException ex) {
-        // There was an early return in the function, so return the value of that.
-        return ex.getValue();
-      }
+      return evaluateBody(context, scope);
+    } finally {
+      Profiler.pop();
+    }
+  }
+  
+  @Override
+  public Obj invoke(Context context, Obj left, Obj right) {
+    // If the pattern isn't a simple tuple, bind it to a real one.
+    if ((mLeftPattern == null) || (mRightPattern == null)) {
+      return invoke(context, context.toObj(left, right));
+    }
+    
+    try {
+      Profiler.push(mFunction.getPosition());
+      
+      // Create a local scope for the function.
+      Scope scope = mScope.push(mFunction.getLayout());
+      
+      // Bind each side of the argument to its pattern.
+      PatternBinder.bind(context, false, mLeftPattern, left, scope);
+      PatternBinder.bind(context, false, mRightPattern, right, scope);
+      
+      return evaluateBody(context, scope);
     } finally {
       Profiler.pop();
     }
@@ -45,6 +80,20 @@ public class Function implements Callable {
   @Override
   public String getDoc() { return mFunction.getDoc(); }
   
+  private Obj evaluateBody(Context context, Scope scope) {
+    try {
+      // Run the compiled body if the function is hot enough to have one.
+      Node body = Compiler.promote(mFunction);
+      if (body != null) return body.execute(context, scope);
+      return context.evaluate(mFunction.getBody(), scope);
+    } catch (ReturnException ex) {
+      // There was an early return in the function, so return the value of that.
+      return ex.getValue();
+    }
+  }
+  
   private final FnExpr mFunction;
   private final Scope mScope;
+  private Pattern mLeftPattern;
+  private Pattern mRightPattern;
 }
@@ -0,0 +1,35 @@
+package com.stuffwithstuff.magpie.interpreter;
+
+/**
+ * Object type for an Int. Stores the value as a primitive int instead of
+ * boxing it, since ints are created constantly by arithmetic.
+ */
+public class IntObj extends Obj {
+  public IntObj(ClassObj classObj, int value) {
+    super(classObj);
+    
+    mValue = value;
+  }
+  
+  @Override
+  public Object getValue() {
+    return mValue;
+  }
+  
+  @Override
+  public void setValue(Object value) {
+    throw new InterpreterException("Cannot change the value of an Int.");
+  }
+  
+  @Override
+  public int asInt() {
+    return mValue;
+  }
+  
+  @Override
+  public String toString() {
+    return Integer.toString(mValue);
+  }
+  
+  private final int mValue;
+}
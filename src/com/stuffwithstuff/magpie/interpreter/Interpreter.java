@@ -2,6 +2,8 @@ package com.stuffwithstuff.magpie.interpreter;
 
 import java.util.*;
 import java.util.Map.Entry;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 
 import com.stuffwithstuff.magpie.MagpieHost;
 import com.stuffwithstuff.magpie.SourceFile;
@@ -37,6 +39,11 @@ public class Interpreter {
     mFalse = mBaseModule.instantiate(mBoolClass, false);
     mNothing = mBaseModule.instantiate(mNothingClass, null);
     
+    mSmallInts = new IntObj[MAX_SMALL_INT - MIN_SMALL_INT + 1];
+    for (int i = 0; i < mSmallInts.length; i++) {
+      mSmallInts[i] = new IntObj(mIntClass, i + MIN_SMALL_INT);
+    }
+    
     evaluateModule(mBaseModule);
     
     // Now load the syntax module so that quotations and metaprogramming work.
@@ -48,6 +55,7 @@ public class Interpreter {
   }
 
   public Obj interpret(Expr expression) {
+    Resolver.resolveExpression(expression);
     return evaluate(expression, mBaseModule, mBaseModule.getScope());
   }
   
@@ -80,18 +88,20 @@ public class Interpreter {
     
     // Recursion base case. If we're in the middle of dispatching a call to
     // "==", don't call it again, just default to identity.
-    if (mInObjectsEqual) return a == b;
+    ExecutionState state = getState();
+    if (state.isInObjectsEqual()) return a == b;
 
     Multimethod equals = mBaseModule.getScope().lookUpMultimethod(Name.EQEQ);   
     
     // Bootstrap short-cut. If we haven't defined "==" yet, default to identity.
     if (equals == null) return a == b;
     
-    mInObjectsEqual = true;
-    Obj result = equals.invoke(Name.EQEQ, mBaseModule, a, b);
-    mInObjectsEqual = false;
-    
-    return result.asBool();
+    state.setInObjectsEqual(true);
+    try {
+      return equals.invoke(Name.EQEQ, mBaseModule, a, b).asBool();
+    } finally {
+      state.setInObjectsEqual(false);
+    }
   }
   
   public Module importModule(String name) {
@@ -99,16 +109,19 @@ public class Interpreter {
     
     // If it's a relative name, fully expand it.
     if (name.startsWith(".")) {
-      name = mLoadingModules.peek().getName() + name;
+      name = getState().getLoadingModule().getName() + name;
     }
     
     Module module = mModules.get(name);
     
-    // Only load it once.
+    // Only load it once. If two routines import it at the same time, only the
+    // first one loads it. Like a circular import, the other may see it before
+    // it has finished loading.
     if (module == null) {
       SourceFile info = mHost.loadModule(name);
       module = new Module(name, info, this);
-      mModules.put(name, module);
+      Module existing = mModules.putIfAbsent(name, module);
+      if (existing != null) return existing;
       
       evaluateModule(module);
     }
@@ -117,6 +130,13 @@ public class Interpreter {
   }
   
   public ErrorException error(String errorClassName, String message) {
+    throw new ErrorException(createError(errorClassName, message));
+  }
+  
+  /**
+   * Creates an error object of the given class without throwing it.
+   */
+  public Obj createError(String errorClassName, String message) {
     // Look up the error class.
     ClassObj classObj = mBaseModule.getScope().get(errorClassName).asClass();
 
@@ -130,7 +150,7 @@ public class Interpreter {
     
     error.setValue(message);
     
-    throw new ErrorException(error);
+    return error;
   }
   
   /**
@@ -155,6 +175,15 @@ public class Interpreter {
     return value ? mTrue : mFalse;
   }
   
+  public Obj getInt(int value) {
+    // Reuse the objects for small numbers, since most ints are.
+    if ((value >= MIN_SMALL_INT) && (value <= MAX_SMALL_INT)) {
+      return mSmallInts[value - MIN_SMALL_INT];
+    }
+    
+    return new IntObj(mIntClass, value);
+  }
+  
   public ClassObj createClass(String name, List<ClassObj> parents,
       Map<String, Field> fields, Scope scope, String doc) {
     
@@ -164,6 +193,7 @@ public class Interpreter {
       Callable initializer = null;
       if (field.getValue().getInitializer() != null) {
         FnExpr fn = Expr.fn(field.getValue().getInitializer(), "");
+        fn.setLayout(field.getValue().getLayout());
         initializer = new Function(fn, scope);
       }
       
@@ -206,21 +236,23 @@ public class Interpreter {
     return mHost;
   }
   
-  public Map<String, Multimethod> getMultimethods() {
+  public ConcurrentMap<String, Multimethod> getMultimethods() {
     return mMultimethods;
   }
   
-  public Obj getConstructingObject() { return mConstructing.peek(); }
+  public Obj getConstructingObject() { return getState().getConstructing(); }
   
   public Obj constructNewObject(Context context, ClassObj classObj, Obj initArg) {
     Obj newObj = context.instantiate(classObj, null);
     
-    mConstructing.push(newObj);
-
-    // Call the init() multimethod.
-    initializeNewObject(context, classObj, initArg);
-
-    mConstructing.pop();
+    ExecutionState state = getState();
+    state.pushConstructing(newObj);
+    try {
+      // Call the init() multimethod.
+      initializeNewObject(context, classObj, initArg);
+    } finally {
+      state.popConstructing();
+    }
     
     return newObj;
   }
@@ -228,7 +260,9 @@ public class Interpreter {
   public void initializeNewObject(Context context, ClassObj classObj, Obj arg) {
     // Keep track of how many times we reach the canonical initializer so that
     // we can generate an error if an init() call fails to bottom out to it.
-    int expected = mInitializingCount++;
+    ExecutionState state = getState();
+    int expected = state.getInitializingCount();
+    state.beginInitializing();
     
     Multimethod init = classObj.getInitMethod();
     
@@ -238,9 +272,9 @@ public class Interpreter {
     init.invoke(Name.INIT, context, classObj, arg);
 
     // Make sure the canonical initializer was called.
-    if (mInitializingCount > expected) {
+    if (state.getInitializingCount() > expected) {
       // Just decrement it so the error doesn't cascade.
-      mInitializingCount--;
+      state.finishInitializing();
 
       error(Name.INITIALIZATION_ERROR,
           "Instance of class " + classObj.getName() + " was not initialized.");
@@ -248,13 +282,39 @@ public class Interpreter {
   }
   
   public void finishInitialization() {
-    mInitializingCount--;
+    getState().finishInitializing();
+  }
+  
+  /**
+   * Gets the execution state for the current thread.
+   */
+  ExecutionState getState() {
+    return mState.get();
+  }
+  
+  /**
+   * Gets a new state for code that will run on another thread, started from
+   * the code running on this one.
+   */
+  public ExecutionState forkState() {
+    return getState().fork();
+  }
+  
+  /**
+   * Makes the given state the current thread's. Returns the state it
+   * replaces so that it can be put back afterwards.
+   */
+  public ExecutionState swapState(ExecutionState state) {
+    ExecutionState previous = mState.get();
+    mState.set(state);
+    return previous;
   }
   
   private void evaluateModule(Module module) {
     MagpieParser parser = new MagpieParser(module.readSource());
     
-    mLoadingModules.push(module);
+    ExecutionState state = getState();
+    state.pushLoadingModule(module);
     try {
       // Copy the base stuff in first.
       if (module != mBaseModule) {
@@ -267,6 +327,8 @@ public class Interpreter {
       // Evaluate the module.
       try {
         List<Expr> exprs = parser.parseModule();
+        Resolver.resolveModule(exprs);
+        
         for (Expr expr : exprs) {
           evaluate(expr, module, module.getScope());
         }
@@ -276,14 +338,16 @@ public class Interpreter {
         mHost.showSyntaxError(message);
       }
     } finally {
-      mLoadingModules.pop();
+      state.popLoadingModule();
     }
   }
   
   private final MagpieHost mHost;
   
-  private final Map<String, Module> mModules = new HashMap<String, Module>();
-  private final Map<String, Multimethod> mMultimethods = new HashMap<String, Multimethod>();
+  private final ConcurrentMap<String, Module> mModules =
+      new ConcurrentHashMap<String, Module>();
+  private final ConcurrentMap<String, Multimethod> mMultimethods =
+      new ConcurrentHashMap<String, Multimethod>();
   
   private final ClassObj mClass;
   private final ClassObj mArrayClass;
@@ -299,12 +363,19 @@ public class Interpreter {
   private final Obj mTrue;
   private final Obj mFalse;
   
-  private final Stack<Module> mLoadingModules = new Stack<Module>();
+  private static final int MIN_SMALL_INT = -128;
+  private static final int MAX_SMALL_INT = 1023;
+  private final IntObj[] mSmallInts;
+  
   private final Module mBaseModule;
   private final Module mSyntaxModule;
   
-  private final Stack<Obj> mConstructing = new Stack<Obj>();
-  private int mInitializingCount = 0;
-
-  private boolean mInObjectsEqual = false;
+  // Each thread running code gets its own state.
+  private final ThreadLocal<ExecutionState> mState =
+      new ThreadLocal<ExecutionState>() {
+    @Override
+    protected ExecutionState initialValue() {
+      return new ExecutionState();
+    }
+  };
 }
@@ -4,6 +4,12 @@ import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.Map.Entry;
+import java.util.concurrent.ConcurrentHashMap;
+
+import com.stuffwithstuff.magpie.ast.NameExpr;
+import com.stuffwithstuff.magpie.ast.NothingExpr;
+import com.stuffwithstuff.magpie.ast.pattern.*;
 
 /**
  * Maintains a collection of methods for a single multimethod and handles
@@ -58,23 +64,89 @@ import java.util.Map;
  * 
  * If we get all the way through the entire method array with no match, we just
  * return null to indicate that.
+ * 
+ * Dispatch table:
+ * 
+ * Almost every method's pattern is a record whose first two fields are tested
+ * against a class. To avoid testing every method, when the graph is refreshed
+ * we also look at each method's pattern and figure out which classes fields
+ * 0 and 1 of the argument must have for it to match. Then, the first time
+ * we see an argument whose fields have a given pair of classes, we build a
+ * filtered copy of the sorted array (and the remaining arrays) that only
+ * contains the methods that can match those classes, and store it in a table.
+ * Dispatch just looks up the classes in the table and walks that array. If a
+ * method's pattern is completely determined by those classes, it doesn't
+ * even need to be tested. Other methods (value patterns, records with other
+ * fields, etc.) are still tested with the full pattern.
+ * 
+ * Threading:
+ * 
+ * A graph is never modified once it's built. When the methods change, the
+ * Multimethod builds a new graph off to the side and then publishes it, so
+ * dispatch never needs to lock. The only thing a graph fills in after it's
+ * built is the dispatch table, which is a concurrent map of values that are
+ * never modified once they're added.
  */
 public class MethodGraph {
-  public MethodGraph() {
-    mCache = new HashMap<MethodPair, PatternComparer.Result>();
+  /**
+   * Builds a graph of the given methods. If there's a previous graph for the
+   * same multimethod, the comparisons it already made between methods will
+   * be reused. Graphs for the same multimethod must not be built
+   * concurrently.
+   */
+  public MethodGraph(Context context, List<Callable> methods, int version,
+      MethodGraph previous) {
+    mVersion = version;
+    
+    if (previous != null) {
+      mCache = previous.mCache;
+    } else {
+      mCache = new HashMap<MethodPair, PatternComparer.Result>();
+    }
+    
+    build(context, methods);
   }
   
+  /**
+   * Gets the version of the multimethod that this graph was built from.
+   */
+  public int getVersion() { return mVersion; }
+  
   public Callable select(String name, Context context, Obj arg) {
+    return select(name, context, arg.getField(0), arg.getField(1), arg);
+  }
+  
+  /**
+   * Selects the method for a (left, right) tuple argument. The tuple itself is
+   * only created if a method's pattern needs to be tested against it.
+   */
+  public Callable select(String name, Context context, Obj left, Obj right) {
+    return select(name, context, left, right, null);
+  }
+  
+  private Callable select(String name, Context context, Obj left, Obj right,
+      Obj arg) {
     Callable selected = null;
 
-    Callable[] methods = mMethods; 
-    for (int i = 0; i < methods.length;) {
-      Callable method = methods[i];
-      // See if this method matches the argument.
-      // If the callable has a lexical context, evaluate its pattern in that
-      // context. That way pattern names can refer to local variables.
-      if (PatternTester.test(context, method.getPattern(),
-          arg, method.getClosure())) {
+    Candidate[] candidates = getCandidates(left, right);
+    for (int i = 0; i < candidates.length;) {
+      Candidate candidate = candidates[i];
+      Callable method = candidate.method;
+      
+      boolean matches = true;
+      if (candidate.needsTest) {
+        if (arg == null) arg = context.toObj(left, right);
+        
+        // See if this method matches the argument.
+        // If the callable has a lexical context, evaluate its pattern in that
+        // context. That way pattern names can refer to local variables.
+        matches = PatternTester.test(context, method.getPattern(), arg,
+            method.getClosure());
+      }
+      
+      // If the argument's classes are all that matter, we already know it
+      // matches.
+      if (matches) {
         // Found a match.
         if (selected != null) {
           // Multiple (uncovered) matches, so it's ambiguous.
@@ -87,7 +159,7 @@ public class MethodGraph {
         
         // This method has matched, so only search the remaining methods that
         // it doesn't cover.
-        methods = mRemaining[i];
+        candidates = candidate.remaining;
         i = 0;
       } else {
         i++;
@@ -97,8 +169,16 @@ public class MethodGraph {
     // Note: returns null if no method matched.
     return selected;
   }
+  
+  /**
+   * Returns true if the method selected for an argument only depends on the
+   * classes of its first two fields.
+   */
+  public boolean dispatchesOnClass() {
+    return mDispatchesOnClass;
+  }
 
-  public void refreshGraph(Context context, List<Callable> methods) {
+  private void build(Context context, List<Callable> methods) {
     // Topologically sort the methods so that every method comes before all of
     // the methods it covers.
     List<Callable> sorted = new ArrayList<Callable>();
@@ -134,25 +214,91 @@ public class MethodGraph {
       }
     }
     
-    mMethods = sorted.toArray(new Callable[sorted.size()]);
+    Callable[] sortedMethods = sorted.toArray(new Callable[sorted.size()]);
     
     // For each method, calculate the list of remaining methods that need to be
     // tested after that method matches.
-    mRemaining = new Callable[mMethods.length][];
-    for (int i = 0; i < mMethods.length; i++) {
-      List<Callable> remaining = new ArrayList<Callable>();
-      for (int j = i + 1; j < mMethods.length; j++) {
-        if (compare(context, mMethods[i], mMethods[j]) !=
+    int[][] remainingMethods = new int[sortedMethods.length][];
+    for (int i = 0; i < sortedMethods.length; i++) {
+      List<Integer> remaining = new ArrayList<Integer>();
+      for (int j = i + 1; j < sortedMethods.length; j++) {
+        if (compare(context, sortedMethods[i], sortedMethods[j]) !=
             PatternComparer.Result.GREATER) {
-          remaining.add(mMethods[j]);
+          remaining.add(j);
         }
       }
       
-      mRemaining[i] = new Callable[remaining.size()];
+      remainingMethods[i] = new int[remaining.size()];
       for (int j = 0; j < remaining.size(); j++) {
-        mRemaining[i][j] = remaining.get(j);
+        remainingMethods[i][j] = remaining.get(j);
       }
     }
+    
+    // Figure out which classes each method's argument needs.
+    ClassFilter[] filters = new ClassFilter[sortedMethods.length];
+    boolean dispatchesOnClass = true;
+    for (int i = 0; i < sortedMethods.length; i++) {
+      filters[i] = new ClassFilter(context, sortedMethods[i]);
+      if (filters[i].needsTest) dispatchesOnClass = false;
+    }
+    
+    mMethods = sortedMethods;
+    mRemaining = remainingMethods;
+    mFilters = filters;
+    mDispatchesOnClass = dispatchesOnClass;
+  }
+  
+  /**
+   * Gets the methods that may match an argument whose first two fields have
+   * the same classes as the given ones.
+   */
+  private Candidate[] getCandidates(Obj left, Obj right) {
+    ClassPair classes = new ClassPair(classOf(left), classOf(right));
+    
+    Candidate[] candidates = mTable.get(classes);
+    if (candidates == null) {
+      // If two threads build the same entry, both are equivalent, so it
+      // doesn't matter which one wins.
+      candidates = buildCandidates(classes.left, classes.right);
+      mTable.putIfAbsent(classes, candidates);
+    }
+    
+    return candidates;
+  }
+  
+  private Candidate[] buildCandidates(ClassObj left, ClassObj right) {
+    // Create a candidate for each method that the classes allow.
+    Map<Integer, Candidate> byIndex = new HashMap<Integer, Candidate>();
+    for (int i = 0; i < mMethods.length; i++) {
+      if (mFilters[i].accepts(left, right)) {
+        byIndex.put(i, new Candidate(mMethods[i], mFilters[i].needsTest));
+      }
+    }
+    
+    // Filter the remaining methods for each one the same way.
+    for (Entry<Integer, Candidate> entry : byIndex.entrySet()) {
+      entry.getValue().remaining = filter(mRemaining[entry.getKey()], byIndex);
+    }
+    
+    int[] all = new int[mMethods.length];
+    for (int i = 0; i < all.length; i++) all[i] = i;
+    
+    return filter(all, byIndex);
+  }
+  
+  private Candidate[] filter(int[] methods, Map<Integer, Candidate> byIndex) {
+    List<Candidate> candidates = new ArrayList<Candidate>();
+    for (int method : methods) {
+      Candidate candidate = byIndex.get(method);
+      if (candidate != null) candidates.add(candidate);
+    }
+    
+    return candidates.toArray(new Candidate[candidates.size()]);
+  }
+  
+  private static ClassObj classOf(Obj value) {
+    if (value == null) return null;
+    return value.getClassObj();
   }
   
   private PatternComparer.Result compare(Context context, Callable from, Callable to) {
@@ -170,6 +316,150 @@ public class MethodGraph {
     return result;
   }
   
+  /**
+   * A method that may match an argument, along with the methods that still
+   * need to be tested if it does.
+   */
+  private static class Candidate {
+    public Candidate(Callable method, boolean needsTest) {
+      this.method = method;
+      this.needsTest = needsTest;
+    }
+    
+    final Callable method;
+    final boolean needsTest;
+    
+    // Only set while the candidates are being built, before they're
+    // published in the table.
+    Candidate[] remaining;
+  }
+  
+  /**
+   * Describes which classes the first two fields of an argument must have in
+   * order to match a method's pattern. This is only a quick filter: if the
+   * pattern depends on anything else, needsTest is set and the pattern must
+   * still be tested.
+   */
+  private static class ClassFilter {
+    public ClassFilter(Context context, Callable method) {
+      mNothingClass = context.nothing().getClassObj();
+      
+      Pattern pattern = unwrap(method.getPattern());
+      
+      // A type pattern is only guaranteed to always evaluate to the same
+      // class if it's defined at the top level of a module, where variables
+      // can't be shadowed.
+      if ((method.getClosure().getParent() != null) ||
+          !(pattern instanceof RecordPattern)) {
+        needsTest = !(pattern instanceof WildcardPattern);
+        return;
+      }
+      
+      for (Entry<String, Pattern> field :
+          ((RecordPattern)pattern).getFields().entrySet()) {
+        int index;
+        if (field.getKey().equals(Name.getTupleField(0))) {
+          index = 0;
+        } else if (field.getKey().equals(Name.getTupleField(1))) {
+          index = 1;
+        } else {
+          // Some other field, so the filter can't tell.
+          needsTest = true;
+          continue;
+        }
+        
+        mRequired[index] = true;
+        
+        Pattern fieldPattern = unwrap(field.getValue());
+        if (fieldPattern instanceof WildcardPattern) continue;
+        
+        ClassObj classObj = getClass(method.getClosure(), fieldPattern);
+        if (classObj != null) {
+          mClasses[index] = classObj;
+        } else {
+          needsTest = true;
+        }
+      }
+    }
+    
+    public boolean accepts(ClassObj left, ClassObj right) {
+      return accepts(0, left) && accepts(1, right);
+    }
+    
+    private boolean accepts(int index, ClassObj classObj) {
+      if (!mRequired[index]) return true;
+      if (classObj == null) return false;
+      if (mClasses[index] == null) return true;
+      return classObj.isSubclassOf(mClasses[index]);
+    }
+    
+    private Pattern unwrap(Pattern pattern) {
+      while (pattern instanceof VariablePattern) {
+        pattern = ((VariablePattern)pattern).getPattern();
+      }
+      
+      return pattern;
+    }
+    
+    /**
+     * Gets the class that a value must be an instance of to match the given
+     * pattern, if the pattern doesn't test anything else. Otherwise returns
+     * null.
+     */
+    private ClassObj getClass(Scope closure, Pattern pattern) {
+      if (pattern instanceof TypePattern) {
+        // Only look up classes by name so that they evaluate to the same class
+        // every time.
+        TypePattern typePattern = (TypePattern)pattern;
+        if (!(typePattern.getType() instanceof NameExpr)) return null;
+        
+        String name = ((NameExpr)typePattern.getType()).getName();
+        Obj type = closure.lookUp(name);
+        if (type instanceof ClassObj) return (ClassObj)type;
+        
+        // If it isn't defined yet or isn't a class, let the tester report it.
+        return null;
+      }
+      
+      // There's only one nothing, so matching it is the same as matching its
+      // class.
+      if ((pattern instanceof ValuePattern) &&
+          (((ValuePattern)pattern).getValue() instanceof NothingExpr)) {
+        return mNothingClass;
+      }
+      
+      return null;
+    }
+    
+    boolean needsTest = false;
+    
+    private final ClassObj mNothingClass;
+    private final boolean[] mRequired = new boolean[2];
+    private final ClassObj[] mClasses = new ClassObj[2];
+  }
+  
+  private static class ClassPair {
+    final ClassObj left;
+    final ClassObj right;
+    
+    public ClassPair(ClassObj left, ClassObj right) {
+      this.left = left;
+      this.right = right;
+    }
+    
+    @Override
+    public boolean equals(Object other) {
+      ClassPair pair = (ClassPair) other;
+      return left == pair.left && right == pair.right;
+    }
+    
+    @Override
+    public int hashCode() {
+      return System.identityHashCode(left) * 31 +
+          System.identityHashCode(right);
+    }
+  }
+  
   private static class MethodPair {
     Callable from;
     Callable to;
@@ -191,7 +481,15 @@ public class MethodGraph {
     }
   }
 
+  private final int mVersion;
+  
+  // Only used while a graph is being built, which the Multimethod serializes.
   private final Map<MethodPair, PatternComparer.Result> mCache;
+  
   private Callable[] mMethods;
-  private Callable[][] mRemaining;
+  private int[][] mRemaining;
+  private ClassFilter[] mFilters;
+  private boolean mDispatchesOnClass;
+  private final ConcurrentHashMap<ClassPair, Candidate[]> mTable =
+      new ConcurrentHashMap<ClassPair, Candidate[]>();
 }
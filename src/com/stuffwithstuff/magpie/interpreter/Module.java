@@ -68,7 +68,8 @@ public class Module implements Context {
   }
   
   public Obj instantiate(ClassObj classObj, Object primitiveValue) {
-    Obj object = new Obj(classObj, primitiveValue);
+    Obj object = new Obj(classObj, primitiveValue,
+        classObj.getInstanceShape());
     
     // Initialize its fields.
     for (Entry<String, FieldObj> field : classObj.getFieldDefinitions().entrySet()) {
@@ -91,7 +92,7 @@ public class Module implements Context {
   }
   
   public Obj toObj(int value) {
-    return instantiate(mInterpreter.getIntClass(), value);
+    return mInterpreter.getInt(value);
   }
   
   public Obj toObj(String value) {
@@ -99,18 +100,25 @@ public class Module implements Context {
   }
 
   public Obj toObj(Obj... fields) {
-    Obj record = instantiate(mInterpreter.getRecordClass(), null);
+    Obj record = new Obj(mInterpreter.getRecordClass(), null,
+        Shape.tuple(fields.length));
     
-    int index = 0;
-    for (Obj field : fields) {
-      record.setField(Name.getTupleField(index++), field);
+    for (int i = 0; i < fields.length; i++) {
+      record.setFieldAt(i, fields[i]);
     }
     
     return record;
   }
   
   public Obj toObj(List<String> keys, Map<String, Obj> fields) {
-    Obj record = instantiate(mInterpreter.getRecordClass(), keys);
+    // Work out the record's shape first so that its fields are stored
+    // without growing it one field at a time.
+    Shape shape = Shape.EMPTY;
+    for (String key : keys) {
+      if (shape.indexOf(key) == -1) shape = shape.with(key);
+    }
+    
+    Obj record = new Obj(mInterpreter.getRecordClass(), keys, shape);
     
     for (Entry<String, Obj> field : fields.entrySet()) {
       record.setField(field.getKey(), field.getValue());
@@ -1,13 +1,33 @@
 package com.stuffwithstuff.magpie.interpreter;
 
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.List;
 
+/**
+ * A named collection of methods. Invoking it selects the best method for the
+ * argument and calls it.
+ * 
+ * <p>Multimethods are shared by every routine, so they may be invoked and
+ * have methods added on different threads at the same time. The list of
+ * methods and the MethodGraph built from them are both immutable. Adding a
+ * method publishes a new list, and the next dispatch builds a new graph off
+ * to the side and publishes that. Dispatch itself never locks.
+ */
 public class Multimethod {
   public Multimethod(String doc) {
     mDoc = doc;
   }
   
+  /**
+   * Invalidates the methods selected by every multimethod. This must be called
+   * whenever something that a method's pattern may depend on changes, like a
+   * top-level variable that refers to a class.
+   */
+  public static void invalidateAll() {
+    sGlobalVersion++;
+  }
+  
   /**
    * Gets the documentation for the multimethod. This should describe the
    * multimethod in general, while each method's doc describes its behavior
@@ -15,27 +35,54 @@ public class Multimethod {
    */
   public String getDoc() { return mDoc; }
   
+  /**
+   * Gets the methods in the multimethod. The list is a snapshot that won't
+   * change if more methods are added.
+   */
   public List<Callable> getMethods() { return mMethods; }
   
-  public void addMethod(Callable method) {
+  /**
+   * Gets the current version of this multimethod. This changes whenever a
+   * method is added to it (or every multimethod is invalidated), so callers
+   * that cache the result of {@link #select} can tell when it's stale.
+   */
+  public int getVersion() { return mVersion + sGlobalVersion; }
+  
+  public synchronized void addMethod(Callable method) {
     if (mMethods.contains(method)) return;
     
-    mMethods.add(method);
-    mSorted = false;
+    List<Callable> methods = new ArrayList<Callable>(mMethods);
+    methods.add(method);
+    mMethods = Collections.unmodifiableList(methods);
+    mVersion++;
+  }
+  
+  /**
+   * Returns true if the method selected for an argument depends only on the
+   * classes of its first two fields. If so, the result of {@link #select} can
+   * be cached using those classes as the key.
+   */
+  public boolean dispatchesOnClass(Context context) {
+    return getGraph(context).dispatchesOnClass();
   }
   
   public Obj invoke(String name, Context context, Obj left, Obj right) {
-    return invoke(name, context, context.toObj(left, right));
+    Callable method = select(name, context, left, right);
+    return method.invoke(context, left, right);
   }
   
   public Obj invoke(String name, Context context, Obj arg) {
-    if (!mSorted) {
-      mGraph.refreshGraph(context, mMethods);
-      mSorted = true;
-    }
-    
+    Callable method = select(name, context, arg);
+    return method.invoke(context, arg);
+  }
+  
+  /**
+   * Selects the best method for the given argument. Throws a NoMethodError if
+   * no method matches.
+   */
+  public Callable select(String name, Context context, Obj arg) {
     // Select the best method.
-    Callable method = mGraph.select(name, context, arg);
+    Callable method = getGraph(context).select(name, context, arg);
     
     if (method == null) {
       context.error(Name.NO_METHOD_ERROR, 
@@ -43,11 +90,52 @@ public class Multimethod {
           arg + ".");
     }
 
-    return method.invoke(context, arg);
+    return method;
   }
   
+  /**
+   * Selects the best method for a (left, right) tuple argument. Throws a
+   * NoMethodError if no method matches.
+   */
+  public Callable select(String name, Context context, Obj left, Obj right) {
+    // Select the best method.
+    Callable method = getGraph(context).select(name, context, left, right);
+    
+    if (method == null) {
+      context.error(Name.NO_METHOD_ERROR, 
+          "Could not find a method \"" + name + "\" that matches argument " +
+          context.toObj(left, right) + ".");
+    }
+
+    return method;
+  }
+  
+  /**
+   * Gets the graph for the current methods, rebuilding it if it's stale.
+   */
+  private MethodGraph getGraph(Context context) {
+    // The graph depends on the classes that patterns refer to, so it also
+    // needs to be rebuilt if any of those may have changed.
+    MethodGraph graph = mGraph;
+    if ((graph != null) && (graph.getVersion() == getVersion())) return graph;
+    
+    synchronized (this) {
+      // Another thread may have rebuilt it while we were waiting.
+      int version = getVersion();
+      graph = mGraph;
+      if ((graph != null) && (graph.getVersion() == version)) return graph;
+      
+      graph = new MethodGraph(context, mMethods, version, graph);
+      mGraph = graph;
+      return graph;
+    }
+  }
+  
+  private static volatile int sGlobalVersion = 0;
+  
   private final String mDoc;
-  private boolean mSorted = false;
-  private final MethodGraph mGraph = new MethodGraph();
-  private List<Callable> mMethods = new ArrayList<Callable>();
+  private volatile int mVersion = 0;
+  private volatile MethodGraph mGraph;
+  private volatile List<Callable> mMethods =
+      Collections.unmodifiableList(new ArrayList<Callable>());
 }
@@ -44,9 +44,19 @@ public final class Name {
   }
   
   public static String getTupleField(int index) {
+    if (index < sTupleFields.length) return sTupleFields[index];
     return Integer.toString(index);
   }
   
   private Name() {
   }
+  
+  // Avoid creating a new string every time a positional field is accessed.
+  private static final String[] sTupleFields = new String[10];
+  
+  static {
+    for (int i = 0; i < sTupleFields.length; i++) {
+      sTupleFields[i] = Integer.toString(i);
+    }
+  }
 }
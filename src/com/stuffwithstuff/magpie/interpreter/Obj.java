@@ -1,14 +1,14 @@
 package com.stuffwithstuff.magpie.interpreter;
 
 import java.util.ArrayList;
-import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 
 import com.stuffwithstuff.magpie.util.Expect;
 
 public class Obj {  
-  public Obj(ClassObj classObj, Object value) {
+  public Obj(ClassObj classObj, Object value, Shape shape) {
     if (classObj == null) {
       // If we are a class, we're our own class.
       mClass = (this instanceof ClassObj) ? (ClassObj)this : null;
@@ -17,6 +17,13 @@ public class Obj {
     }
     
     mValue = value;
+    mShape = shape;
+    
+    if (shape.size() > 0) mFieldValues = new Obj[shape.size()];
+  }
+  
+  public Obj(ClassObj classObj, Object value) {
+    this(classObj, value, Shape.EMPTY);
   }
   
   public Obj(ClassObj classObj) {
@@ -37,15 +44,45 @@ public class Obj {
    * @return The value or null if there is no field with that name.
    */
   public Obj getField(String name) {
-    return mFields.get(name);
+    int index = mShape.indexOf(name);
+    if (index == -1) return null;
+    return mFieldValues[index];
   }
   
   public Obj getField(int index) {
     return getField(Name.getTupleField(index));
   }
 
+  /**
+   * Gets the fields this object has, in the order they were added. Changing
+   * the returned map does not affect the object.
+   */
   public Map<String, Obj> getFields() {
-    return mFields;
+    Map<String, Obj> fields = new LinkedHashMap<String, Obj>();
+    for (int i = 0; i < mShape.size(); i++) {
+      if (mFieldValues[i] != null) {
+        fields.put(mShape.getName(i), mFieldValues[i]);
+      }
+    }
+    
+    return fields;
+  }
+  
+  /**
+   * Gets the shape that describes where this object's fields are stored.
+   */
+  public Shape getShape() { return mShape; }
+  
+  /**
+   * Gets the value of the field at the given index in this object's shape.
+   * Returns null if the field hasn't been set.
+   */
+  public Obj getFieldAt(int index) {
+    return mFieldValues[index];
+  }
+  
+  public void setFieldAt(int index, Obj value) {
+    mFieldValues[index] = value;
   }
   
   /**
@@ -54,7 +91,20 @@ public class Obj {
    * @param member The fields's value.
    */
   public void setField(String name, Obj field) {
-    mFields.put(name, field);
+    int index = mShape.indexOf(name);
+    if (index == -1) {
+      // Add the field.
+      index = mShape.size();
+      mShape = mShape.with(name);
+      
+      Obj[] values = new Obj[mShape.size()];
+      if (mFieldValues != null) {
+        System.arraycopy(mFieldValues, 0, values, 0, mFieldValues.length);
+      }
+      mFieldValues = values;
+    }
+    
+    mFieldValues[index] = field;
   }
   
   public Object getValue() {
@@ -140,7 +190,7 @@ public class Obj {
       } else {
         // TODO(bob): Hack.
         keys = new ArrayList<String>();
-        for (String key : mFields.keySet()) {
+        for (String key : getFields().keySet()) {
           keys.add(key);
         }
       }
@@ -152,7 +202,7 @@ public class Obj {
         if (!key.equals(Integer.toString(i))) {
           builder.append(key).append(": ");
         }
-        builder.append(mFields.get(key));
+        builder.append(getField(key));
       }
             
       return builder.toString();
@@ -168,5 +218,6 @@ public class Obj {
   
   private ClassObj mClass;
   private Object mValue;
-  private final Map<String, Obj> mFields = new HashMap<String, Obj>();
+  private Shape mShape;
+  private Obj[] mFieldValues;
 }
@@ -2,6 +2,7 @@ package com.stuffwithstuff.magpie.interpreter;
 
 import java.util.Map.Entry;
 
+import com.stuffwithstuff.magpie.ast.NameExpr;
 import com.stuffwithstuff.magpie.ast.pattern.*;
 
 /**
@@ -30,8 +31,7 @@ public class PatternTester implements PatternVisitor<Boolean, Obj> {
   
   @Override
   public Boolean visit(TypePattern pattern, Obj value) {
-    Obj expected = mContext.evaluate(pattern.getType(), mScope);
-    return value.getClassObj().isSubclassOf((ClassObj)expected);
+    return value.getClassObj().isSubclassOf(evaluateType(pattern));
   }
   
   @Override
@@ -50,6 +50,25 @@ public class PatternTester implements PatternVisitor<Boolean, Obj> {
     return true;
   }
 
+  private ClassObj evaluateType(TypePattern pattern) {
+    // Reuse the class from the last time it was evaluated in this scope.
+    BoundType bound = pattern.getBoundType();
+    if (bound != null) {
+      ClassObj type = bound.get(mScope);
+      if (type != null) return type;
+    }
+    
+    Obj expected = mContext.evaluate(pattern.getType(), mScope);
+    
+    // Only a simple name is guaranteed to evaluate to the same class again.
+    if ((pattern.getType() instanceof NameExpr) &&
+        (expected instanceof ClassObj)) {
+      pattern.setBoundType(new BoundType(mScope, (ClassObj)expected));
+    }
+    
+    return (ClassObj)expected;
+  }
+  
   private PatternTester(Context context, Scope scope) {
     mContext = context;
     mScope = scope;
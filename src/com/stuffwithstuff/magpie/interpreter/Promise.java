@@ -0,0 +1,86 @@
+package com.stuffwithstuff.magpie.interpreter;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A value that will be provided later, possibly by another routine. It can be
+ * completed once, either with a value or with an error. Routines that wait on
+ * it block until then.
+ */
+public class Promise {
+  public boolean isDone() {
+    return mDone.getCount() == 0;
+  }
+  
+  /**
+   * Completes the promise with the given value. Returns false if it has
+   * already been completed.
+   */
+  public boolean complete(Obj value) {
+    return finish(value, null);
+  }
+  
+  /**
+   * Completes the promise with the given error. Routines waiting on it will
+   * throw the error. Returns false if it has already been completed.
+   */
+  public boolean fail(Obj error) {
+    return finish(null, error);
+  }
+  
+  /**
+   * Waits until the promise is completed and returns its value. If it failed,
+   * throws its error.
+   */
+  public Obj await() throws InterruptedException {
+    if (!isDone()) {
+      Scheduler.await(new Scheduler.Blocker<Void>() {
+        protected Void perform() throws InterruptedException {
+          mDone.await();
+          return null;
+        }
+      });
+    }
+    
+    return getValue();
+  }
+  
+  /**
+   * Waits at most the given number of milliseconds for the promise to be
+   * completed and returns its value. If it failed, throws its error. Returns
+   * null if it times out.
+   */
+  public Obj await(final long timeout) throws InterruptedException {
+    if (!isDone()) {
+      boolean done = Scheduler.await(new Scheduler.Blocker<Boolean>() {
+        protected Boolean perform() throws InterruptedException {
+          return mDone.await(timeout, TimeUnit.MILLISECONDS);
+        }
+      });
+      
+      if (!done) return null;
+    }
+    
+    return getValue();
+  }
+  
+  private synchronized boolean finish(Obj value, Obj error) {
+    if (isDone()) return false;
+    
+    mValue = value;
+    mError = error;
+    mDone.countDown();
+    return true;
+  }
+  
+  private Obj getValue() {
+    if (mError != null) throw new ErrorException(mError);
+    return mValue;
+  }
+  
+  // The latch publishes the value and error to the waiting threads.
+  private final CountDownLatch mDone = new CountDownLatch(1);
+  private Obj mValue;
+  private Obj mError;
+}
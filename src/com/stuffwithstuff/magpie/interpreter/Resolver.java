@@ -0,0 +1,383 @@
+package com.stuffwithstuff.magpie.interpreter;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map.Entry;
+
+import com.stuffwithstuff.magpie.ast.*;
+import com.stuffwithstuff.magpie.ast.pattern.*;
+import com.stuffwithstuff.magpie.compiler.ExecutionCounter;
+import com.stuffwithstuff.magpie.util.Pair;
+
+/**
+ * Walks a parsed module and resolves references to local variables. Every
+ * expression that creates a local scope at runtime gets a ScopeLayout that
+ * assigns a slot to each variable declared in it. Every NameExpr and
+ * AssignExpr that refers to a local variable declared before it is annotated
+ * with the (depth, slot) of that variable.
+ *
+ * <p>The scopes created here must mirror the ones ExprEvaluator pushes at
+ * runtime. Names that aren't resolved (top-level variables, imports, and
+ * locals that are declared after the name appears) are left alone and are
+ * looked up by name at runtime, as before.
+ */
+public class Resolver implements ExprVisitor<Void, Void> {
+  public static void resolveModule(List<Expr> exprs) {
+    Resolver resolver = new Resolver();
+    for (Expr expr : exprs) {
+      resolver.resolve(expr);
+    }
+  }
+
+  public static void resolveExpression(Expr expr) {
+    new Resolver().resolve(expr);
+  }
+
+  @Override
+  public Void visit(ArrayExpr expr, Void dummy) {
+    for (Expr element : expr.getElements()) {
+      resolve(element);
+    }
+    return null;
+  }
+
+  @Override
+  public Void visit(AssignExpr expr, Void dummy) {
+    resolve(expr.getValue());
+
+    if (!inQuote()) expr.resolve(resolveName(expr.getName()));
+    return null;
+  }
+
+  @Override
+  public Void visit(BoolExpr expr, Void dummy) {
+    return null;
+  }
+
+  @Override
+  public Void visit(BreakExpr expr, Void dummy) {
+    return null;
+  }
+
+  @Override
+  public Void visit(CallExpr expr, Void dummy) {
+    resolve(expr.getArg());
+    return null;
+  }
+
+  @Override
+  public Void visit(ClassExpr expr, Void dummy) {
+    for (Field field : expr.getFields().values()) {
+      // Field patterns are tested in the scope where the class is defined.
+      resolvePattern(field.getPattern());
+
+      // Each initializer is wrapped in a function whose closure is the scope
+      // where the class is defined.
+      if (field.getInitializer() != null) {
+        // The initializer gets its own function, so loops in it don't count
+        // towards the enclosing one.
+        ExecutionCounter counter = mCounter;
+        mCounter = null;
+        ScopeLayout layout = beginScope();
+        resolve(field.getInitializer());
+        endScope();
+        mCounter = counter;
+
+        if (!inQuote()) field.setLayout(layout);
+      }
+    }
+
+    declare(expr.getName());
+    return null;
+  }
+
+  @Override
+  public Void visit(FnExpr expr, Void dummy) {
+    expr.setLayout(resolveFunction(expr.getPattern(), expr.getBody(),
+        expr.getCounter()));
+    return null;
+  }
+
+  @Override
+  public Void visit(ImportExpr expr, Void dummy) {
+    // Imported names are only known at runtime, so they are looked up by name.
+    return null;
+  }
+
+  @Override
+  public Void visit(IntExpr expr, Void dummy) {
+    return null;
+  }
+
+  @Override
+  public Void visit(LoopExpr expr, Void dummy) {
+    ScopeLayout layout = beginScope();
+    resolve(expr.getBody());
+    endScope();
+
+    if (!inQuote()) {
+      expr.setLayout(layout);
+      expr.setCounter(mCounter);
+    }
+    return null;
+  }
+
+  @Override
+  public Void visit(MatchExpr expr, Void dummy) {
+    ScopeLayout layout = beginScope();
+    resolve(expr.getValue());
+    resolveCases(expr.getCases());
+    endScope();
+
+    if (!inQuote()) expr.setLayout(layout);
+    return null;
+  }
+
+  @Override
+  public Void visit(MethodExpr expr, Void dummy) {
+    // A method with no body just declares the multimethod.
+    if (expr.getBody() == null) return null;
+
+    expr.setLayout(resolveFunction(expr.getPattern(), expr.getBody(),
+        expr.getCounter()));
+    return null;
+  }
+
+  @Override
+  public Void visit(NameExpr expr, Void dummy) {
+    if (!inQuote()) expr.resolve(resolveName(expr.getName()));
+    return null;
+  }
+
+  @Override
+  public Void visit(NothingExpr expr, Void dummy) {
+    return null;
+  }
+
+  @Override
+  public Void visit(QuoteExpr expr, Void dummy) {
+    // The body of a quotation isn't evaluated, but any unquoted expressions in
+    // it are evaluated in the current scope.
+    mQuoteDepth++;
+    resolve(expr.getBody());
+    mQuoteDepth--;
+    return null;
+  }
+
+  @Override
+  public Void visit(RecordExpr expr, Void dummy) {
+    for (Pair<String, Expr> field : expr.getFields()) {
+      resolve(field.getValue());
+    }
+    return null;
+  }
+
+  @Override
+  public Void visit(ReturnExpr expr, Void dummy) {
+    resolve(expr.getValue());
+    return null;
+  }
+
+  @Override
+  public Void visit(ScopeExpr expr, Void dummy) {
+    ScopeLayout layout = beginScope();
+    resolve(expr.getBody());
+
+    // Catch clauses are evaluated inside the scope of the body.
+    resolveCases(expr.getCatches());
+    endScope();
+
+    if (!inQuote()) expr.setLayout(layout);
+    return null;
+  }
+
+  @Override
+  public Void visit(SequenceExpr expr, Void dummy) {
+    for (Expr thisExpr : expr.getExpressions()) {
+      resolve(thisExpr);
+    }
+    return null;
+  }
+
+  @Override
+  public Void visit(StringExpr expr, Void dummy) {
+    return null;
+  }
+
+  @Override
+  public Void visit(ThrowExpr expr, Void dummy) {
+    resolve(expr.getValue());
+    return null;
+  }
+
+  @Override
+  public Void visit(UnquoteExpr expr, Void dummy) {
+    // An unquoted expression inside a quotation is evaluated normally.
+    int quoteDepth = mQuoteDepth;
+    mQuoteDepth = 0;
+    resolve(expr.getBody());
+    mQuoteDepth = quoteDepth;
+    return null;
+  }
+
+  @Override
+  public Void visit(VarExpr expr, Void dummy) {
+    resolve(expr.getValue());
+    resolvePattern(expr.getPattern());
+    declarePattern(expr.getPattern());
+    return null;
+  }
+
+  private Resolver() {
+  }
+
+  private void resolve(Expr expr) {
+    if (expr == null) return;
+    expr.accept(this, null);
+  }
+
+  /**
+   * Resolves a function with the given parameter pattern and body. Returns the
+   * layout of the scope created when the function is invoked. Loops in the
+   * body count their iterations using the given counter.
+   */
+  private ScopeLayout resolveFunction(Pattern pattern, Expr body,
+      ExecutionCounter counter) {
+    // The parameter pattern is tested in the scope where the function is
+    // defined, but its variables are bound in the function's own scope.
+    resolvePattern(pattern);
+
+    ExecutionCounter outerCounter = mCounter;
+    mCounter = counter;
+    ScopeLayout layout = beginScope();
+    declarePattern(pattern);
+    resolve(body);
+    endScope();
+    mCounter = outerCounter;
+
+    if (inQuote()) return null;
+    
+    markTailReturns(body);
+    return layout;
+  }
+  
+  /**
+   * Finds the return expressions whose value will be the value of the given
+   * function body and marks them so they don't have to unwind the stack.
+   */
+  private void markTailReturns(Expr expr) {
+    if (expr instanceof ReturnExpr) {
+      ((ReturnExpr)expr).markTail();
+    } else if (expr instanceof SequenceExpr) {
+      List<Expr> exprs = ((SequenceExpr)expr).getExpressions();
+      if (!exprs.isEmpty()) markTailReturns(exprs.get(exprs.size() - 1));
+    } else if (expr instanceof MatchExpr) {
+      markTailReturns(((MatchExpr)expr).getCases());
+    } else if (expr instanceof ScopeExpr) {
+      markTailReturns(((ScopeExpr)expr).getBody());
+      markTailReturns(((ScopeExpr)expr).getCatches());
+    }
+  }
+  
+  private void markTailReturns(List<MatchCase> cases) {
+    if (cases == null) return;
+    
+    for (MatchCase matchCase : cases) {
+      markTailReturns(matchCase.getBody());
+    }
+  }
+
+  private void resolveCases(List<MatchCase> cases) {
+    if (cases == null) return;
+
+    for (MatchCase matchCase : cases) {
+      // The pattern is tested in the enclosing scope, then a new scope is
+      // created to bind its variables and evaluate the body.
+      resolvePattern(matchCase.getPattern());
+
+      ScopeLayout layout = beginScope();
+      declarePattern(matchCase.getPattern());
+      resolve(matchCase.getBody());
+      endScope();
+
+      if (!inQuote()) matchCase.setLayout(layout);
+    }
+  }
+
+  /**
+   * Resolves the type and value expressions in the given pattern.
+   */
+  private void resolvePattern(Pattern pattern) {
+    if (pattern instanceof RecordPattern) {
+      for (Pattern field : ((RecordPattern)pattern).getFields().values()) {
+        resolvePattern(field);
+      }
+    } else if (pattern instanceof TypePattern) {
+      resolve(((TypePattern)pattern).getType());
+    } else if (pattern instanceof ValuePattern) {
+      resolve(((ValuePattern)pattern).getValue());
+    } else if (pattern instanceof VariablePattern) {
+      resolvePattern(((VariablePattern)pattern).getPattern());
+    }
+  }
+
+  /**
+   * Declares the variables bound by the given pattern in the current scope.
+   */
+  private void declarePattern(Pattern pattern) {
+    if (pattern instanceof RecordPattern) {
+      for (Entry<String, Pattern> field :
+          ((RecordPattern)pattern).getFields().entrySet()) {
+        declarePattern(field.getValue());
+      }
+    } else if (pattern instanceof VariablePattern) {
+      VariablePattern variable = (VariablePattern)pattern;
+
+      // The wildcard name doesn't bind anything.
+      if (!variable.getName().equals("_")) declare(variable.getName());
+
+      declarePattern(variable.getPattern());
+    }
+  }
+
+  private ScopeLayout beginScope() {
+    ScopeLayout layout = new ScopeLayout();
+
+    // Inside a quotation, no scopes are created at runtime.
+    if (!inQuote()) mScopes.add(layout);
+    return layout;
+  }
+
+  private void endScope() {
+    if (!inQuote()) mScopes.remove(mScopes.size() - 1);
+  }
+
+  private void declare(String name) {
+    // Variables declared at the top level of a module are always looked up by
+    // name.
+    if (inQuote() || mScopes.isEmpty()) return;
+
+    mScopes.get(mScopes.size() - 1).declare(name);
+  }
+
+  private ResolvedName resolveName(String name) {
+    for (int i = mScopes.size() - 1; i >= 0; i--) {
+      ScopeLayout layout = mScopes.get(i);
+      int slot = layout.find(name);
+      if (slot != -1) {
+        return new ResolvedName(layout, mScopes.size() - 1 - i, slot);
+      }
+    }
+
+    // Not a local variable.
+    return null;
+  }
+
+  private boolean inQuote() {
+    return mQuoteDepth > 0;
+  }
+
+  private final List<ScopeLayout> mScopes = new ArrayList<ScopeLayout>();
+  private int mQuoteDepth = 0;
+  private ExecutionCounter mCounter;
+}
@@ -2,6 +2,11 @@ package com.stuffwithstuff.magpie.interpreter;
 
 import com.stuffwithstuff.magpie.util.Expect;
 
+/**
+ * This "exception" is used internally by the evaluator to implement "return"
+ * expressions that aren't the last thing evaluated in a function. It's caught
+ * by the function being returned from.
+ */
 @SuppressWarnings("serial")
 public class ReturnException extends RuntimeException {
   public ReturnException(Obj value) {
@@ -12,5 +17,14 @@ public class ReturnException extends RuntimeException {
   
   public Obj getValue() { return mValue; }
   
+  /**
+   * This is only used for control flow and is always caught, so don't waste
+   * time capturing the (potentially very deep) Java stack.
+   */
+  @Override
+  public Throwable fillInStackTrace() {
+    return this;
+  }
+  
   private final Obj mValue;
 }
\ No newline at end of file
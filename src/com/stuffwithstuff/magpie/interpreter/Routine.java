@@ -1,22 +1,85 @@
 package com.stuffwithstuff.magpie.interpreter;
 
-// TODO(bob): Pretty ghetto. Should at least use a thread pool.
-public class Routine extends Thread {
+/**
+ * A function running concurrently with the code that started it. Routines
+ * are run by the current {@link Scheduler}.
+ */
+public class Routine implements Runnable {
   public Routine(Context context, FnObj function) {
+    this(context, function, null);
+  }
+  
+  /**
+   * Creates a routine that completes the given promise with the result of
+   * the function.
+   */
+  public Routine(Context context, FnObj function, Promise promise) {
     mContext = context;
     mFunction = function;
+    mPromise = promise;
+    
+    // The routine may not run on this thread, so take the state it's started
+    // in now.
+    mState = context.getInterpreter().forkState();
+  }
+  
+  /**
+   * Starts running the routine.
+   */
+  public void start() {
+    Scheduler.start(this);
   }
   
   public void run() {
+    // A thread may run several routines, one inside another if the pool runs
+    // a routine while this one is waiting, so put back what was there.
+    Interpreter interpreter = mContext.getInterpreter();
+    ExecutionState previous = interpreter.swapState(mState);
     try {
-    mFunction.invoke(mContext, mContext.nothing());
+      execute();
+    } finally {
+      interpreter.swapState(previous);
+    }
+  }
+  
+  private void execute() {
+    try {
+      Obj result = mFunction.invoke(mContext, mContext.nothing());
+      if (mPromise != null) mPromise.complete(result);
     } catch (ErrorException ex) {
-      // TODO(bob): How should this be handled?
-      System.out.println(String.format("Uncaught %s: %s",
-          ex.getError().getClassObj().getName(), ex.getError().getValue()));
+      uncaught(ex.getError());
+    } catch (RuntimeException ex) {
+      // A bug in an intrinsic shouldn't take down the thread the routine is
+      // running on, so treat it like a Magpie error.
+      uncaught(mContext.getInterpreter().createError("Error", ex.toString()));
+    } finally {
+      try {
+        // Don't leave anyone waiting forever if something unexpected went
+        // wrong.
+        if ((mPromise != null) && !mPromise.isDone()) {
+          mPromise.fail(mContext.getInterpreter().createError("Error",
+              "The routine did not complete."));
+        }
+      } finally {
+        Scheduler.finished(this);
+      }
+    }
+  }
+  
+  private void uncaught(Obj error) {
+    // If someone is waiting for the result, they get the error.
+    if (mPromise != null) {
+      mPromise.fail(error);
+      return;
     }
+    
+    // TODO(bob): How should this be handled?
+    System.out.println(String.format("Uncaught %s: %s",
+        error.getClassObj().getName(), error.getValue()));
   }
   
   private final Context mContext;
   private final FnObj mFunction;
+  private final Promise mPromise;
+  private final ExecutionState mState;
 }
@@ -0,0 +1,239 @@
+package com.stuffwithstuff.magpie.interpreter;
+
+import java.io.IOException;
+import java.lang.reflect.Method;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinPool.ManagedBlocker;
+
+/**
+ * Decides which threads Routines run on. There are three schedulers:
+ * 
+ * <ul>
+ * <li>"virtual" runs each routine on its own virtual thread. This is the
+ *     default when the JVM supports them (JDK 21 and later).</li>
+ * <li>"pool" runs routines on a work-stealing pool with a thread for each
+ *     processor.</li>
+ * <li>"thread" runs each routine on its own platform thread. This is the
+ *     default on older JVMs.</li>
+ * </ul>
+ * 
+ * <p>Code that blocks a routine (receiving from a channel, sleeping, reading a
+ * socket, etc.) should do it through {@link #block} so that the pool can
+ * start another thread while it's blocked instead of running out of threads.
+ * Virtual threads park cheaply when they block, so they don't need that.
+ * 
+ * <p>Routines may wait on each other, so the pool has to start a thread for
+ * every routine that is blocked at the same time or it could deadlock. That
+ * means it only saves threads over "thread" while few routines are blocked,
+ * which is why it isn't the default.
+ */
+public abstract class Scheduler {
+  public static final String VIRTUAL = "virtual";
+  public static final String POOL = "pool";
+  public static final String THREAD = "thread";
+  
+  /**
+   * Gets the scheduler that new routines will run on.
+   */
+  public static synchronized Scheduler get() {
+    if (sScheduler == null) {
+      sScheduler = create(VIRTUAL);
+      if (sScheduler == null) sScheduler = create(THREAD);
+    }
+    
+    return sScheduler;
+  }
+  
+  /**
+   * Sets the scheduler that new routines will run on. Returns false if there
+   * is no scheduler with the given name or this JVM doesn't support it.
+   */
+  public static synchronized boolean use(String name) {
+    Scheduler scheduler = create(name);
+    if (scheduler == null) return false;
+    
+    sScheduler = scheduler;
+    return true;
+  }
+  
+  /**
+   * Gets the work-stealing pool. The "pool" scheduler runs routines on it,
+   * and it's also used for data-parallel work regardless of which scheduler
+   * is running routines.
+   */
+  public static synchronized ForkJoinPool getPool() {
+    if (sPool == null) {
+      // Routines are independent of each other, so run them in the order
+      // they're started.
+      sPool = new ForkJoinPool(Runtime.getRuntime().availableProcessors(),
+          ForkJoinPool.defaultForkJoinWorkerThreadFactory, null, true);
+    }
+    
+    return sPool;
+  }
+  
+  /**
+   * Runs the given routine on the current scheduler.
+   */
+  public static void start(Routine routine) {
+    synchronized (sLock) {
+      sRunning++;
+    }
+    
+    get().execute(routine);
+  }
+  
+  /**
+   * Called by a routine when it's done running.
+   */
+  static void finished(Routine routine) {
+    synchronized (sLock) {
+      sRunning--;
+      if (sRunning == 0) sLock.notifyAll();
+    }
+  }
+  
+  /**
+   * Waits until every routine that has been started has finished. Routines
+   * don't run on threads that keep the JVM alive, so a program should call
+   * this before it exits.
+   */
+  public static void awaitRoutines() throws InterruptedException {
+    synchronized (sLock) {
+      while (sRunning > 0) sLock.wait();
+    }
+  }
+  
+  /**
+   * Performs the given blocking operation. If this is running on the pool, it
+   * will add a thread while this one is blocked.
+   */
+  public static <T> T block(Blocker<T> blocker)
+      throws IOException, InterruptedException {
+    ForkJoinPool.managedBlock(blocker);
+    
+    if (blocker.mError != null) throw blocker.mError;
+    return blocker.mResult;
+  }
+  
+  /**
+   * Performs the given blocking operation, which must not do any IO.
+   */
+  public static <T> T await(Blocker<T> blocker) throws InterruptedException {
+    try {
+      return block(blocker);
+    } catch (IOException e) {
+      throw new AssertionError(e);
+    }
+  }
+  
+  /**
+   * Blocks the current routine for the given number of milliseconds.
+   */
+  public static void sleep(final long milliseconds)
+      throws InterruptedException {
+    await(new Blocker<Void>() {
+      protected Void perform() throws InterruptedException {
+        Thread.sleep(milliseconds);
+        return null;
+      }
+    });
+  }
+  
+  /**
+   * A blocking operation that returns a value.
+   */
+  public abstract static class Blocker<T> implements ManagedBlocker {
+    public boolean block() throws InterruptedException {
+      try {
+        mResult = perform();
+      } catch (IOException e) {
+        mError = e;
+      }
+      
+      mDone = true;
+      return true;
+    }
+    
+    public boolean isReleasable() {
+      return mDone;
+    }
+    
+    protected abstract T perform() throws IOException, InterruptedException;
+    
+    private boolean mDone = false;
+    private T mResult;
+    private IOException mError;
+  }
+  
+  /**
+   * Gets the name of the scheduler.
+   */
+  public abstract String getName();
+  
+  /**
+   * Runs the given task on one of the scheduler's threads.
+   */
+  protected abstract void execute(Runnable task);
+  
+  private static Scheduler create(String name) {
+    if (name.equals(VIRTUAL)) return VirtualScheduler.create();
+    if (name.equals(POOL)) return new PoolScheduler();
+    if (name.equals(THREAD)) return new ThreadScheduler();
+    
+    return null;
+  }
+  
+  private static class VirtualScheduler extends Scheduler {
+    /**
+     * Creates a scheduler that runs routines on virtual threads. The API for
+     * them isn't available when compiling for older JVMs, so it's looked up
+     * reflectively. Returns null if this JVM doesn't support them.
+     */
+    public static Scheduler create() {
+      try {
+        Method method = java.util.concurrent.Executors.class.getMethod(
+            "newVirtualThreadPerTaskExecutor");
+        return new VirtualScheduler((ExecutorService)method.invoke(null));
+      } catch (Exception ex) {
+        return null;
+      }
+    }
+    
+    public String getName() { return VIRTUAL; }
+    
+    protected void execute(Runnable task) {
+      mExecutor.execute(task);
+    }
+    
+    private VirtualScheduler(ExecutorService executor) {
+      mExecutor = executor;
+    }
+    
+    private final ExecutorService mExecutor;
+  }
+  
+  private static class PoolScheduler extends Scheduler {
+    public String getName() { return POOL; }
+    
+    protected void execute(Runnable task) {
+      getPool().execute(task);
+    }
+  }
+  
+  private static class ThreadScheduler extends Scheduler {
+    public String getName() { return THREAD; }
+    
+    protected void execute(Runnable task) {
+      Thread thread = new Thread(task);
+      thread.setDaemon(true);
+      thread.start();
+    }
+  }
+  
+  private static final Object sLock = new Object();
+  private static int sRunning = 0;
+  private static Scheduler sScheduler;
+  private static ForkJoinPool sPool;
+}
@@ -2,12 +2,20 @@ package com.stuffwithstuff.magpie.interpreter;
 
 import java.util.*;
 import java.util.Map.Entry;
+import java.util.concurrent.ConcurrentMap;
 
+import com.stuffwithstuff.magpie.ast.ResolvedName;
+import com.stuffwithstuff.magpie.ast.ScopeLayout;
 import com.stuffwithstuff.magpie.util.Expect;
 import com.stuffwithstuff.magpie.util.Pair;
 
 /**
  * A lexical scope for named variables and multimethods.
+ * 
+ * <p>A scope created from a ScopeLayout stores the variables the Resolver
+ * found in that layout in an array of slots, so that resolved names can be
+ * read and written without hashing. Any other variable (for example, one that
+ * was imported or defined at the top level of a module) is stored by name.
  */
 public class Scope {
   /**
@@ -20,10 +28,16 @@ public class Scope {
     mParent = null;
   }
   
-  private Scope(Scope parent) {
+  private Scope(Scope parent, ScopeLayout layout) {
     mAllowRedefinition = false;
     mModule = parent.mModule;
     mParent = parent;
+    
+    if (layout != null) {
+      mLayout = layout;
+      mSlots = new Obj[layout.size()];
+      mIsSlotMutable = new boolean[layout.size()];
+    }
   }
   
   public Scope(boolean allowRedefinition) {
@@ -37,7 +51,16 @@ public class Scope {
   }
   
   public Scope push() {
-    return new Scope(this);
+    return new Scope(this, null);
+  }
+  
+  /**
+   * Creates a new child scope whose variables are stored in slots as described
+   * by the given layout. If the layout is null, the scope stores its variables
+   * by name.
+   */
+  public Scope push(ScopeLayout layout) {
+    return new Scope(this, layout);
   }
   
   public void importName(String name, String rename, Module module,
@@ -53,13 +76,13 @@ public class Scope {
             "that name defined.");
       }
       
-      mVariables.put(rename, new Pair<Boolean, Obj>(false, variable));
+      variables().put(rename, new Pair<Boolean, Obj>(false, variable));
     }
     
     // Import multimethod.
     Multimethod multimethod = module.getScope().getMultimethod(name);
     if (multimethod != null || mAllowRedefinition) {
-      Multimethod existing = mMultimethods.get(rename);
+      Multimethod existing = getMultimethod(rename);
       if ((existing != null) && (existing != multimethod)) {
         mModule.error(Name.REDEFINITION_ERROR,
             "Can not import multimethod \"" + rename + "\" from " +
@@ -67,7 +90,7 @@ public class Scope {
             "that name defined.");
       }
       
-      mMultimethods.put(rename, multimethod);
+      multimethods().put(rename, multimethod);
       // TODO(bob): Right now, all top-level multimethods are defined in the
       // global multimethod set, and not in the module itself, so we should
       // never hit this case. Eventually, we do want to support this so that
@@ -102,6 +125,35 @@ public class Scope {
     
     return null;
   }
+  
+  /**
+   * Looks up the local variable that the given name was resolved to. If the
+   * scope it resolved to isn't the one found at runtime, or the variable
+   * hasn't been bound yet, this falls back to looking the variable up by name.
+   * 
+   * @param   name     The name of the variable to look up.
+   * @param   resolved Where the variable was resolved to.
+   * @return           The value bound to that name, or null if not found.
+   */
+  public Obj lookUp(String name, ResolvedName resolved) {
+    Obj value = getSlot(resolved);
+    if (value != null) return value;
+    
+    return lookUp(name);
+  }
+  
+  /**
+   * Gets the value in the slot that the given name was resolved to. Unlike
+   * {@link #lookUp(String, ResolvedName)}, this doesn't fall back to looking
+   * the name up. Returns null if the scope found at runtime isn't the one the
+   * name was resolved in or the variable hasn't been bound yet.
+   */
+  public Obj getSlot(ResolvedName resolved) {
+    Scope scope = ancestor(resolved);
+    if (scope == null) return null;
+    
+    return scope.mSlots[resolved.getSlot()];
+  }
 
   /**
    * Assigns the given value to an existing variable with the given name in the
@@ -118,29 +170,75 @@ public class Scope {
   public boolean assign(String name, Obj value) {
     Scope scope = this;
     while (scope != null) {
-      Pair<Boolean, Obj> variable = scope.mVariables.get(name);
-      if (variable != null) {
+      int slot = scope.findSlot(name);
+      if (slot != -1) {
         // Only assign if the variable is mutable.
         // TODO(bob): Should be a static error.
-        if (variable.getKey()) {
-          scope.mVariables.put(name, new Pair<Boolean, Obj>(true, value));
+        if (scope.mIsSlotMutable[slot]) {
+          bindingChanged(scope, scope.mSlots[slot], value);
+          scope.mSlots[slot] = value;
         }
         return true;
       }
+      
+      if (scope.mVariables != null) {
+        Pair<Boolean, Obj> variable = scope.mVariables.get(name);
+        if (variable != null) {
+          // Only assign if the variable is mutable.
+          // TODO(bob): Should be a static error.
+          if (variable.getKey()) {
+            bindingChanged(scope, variable.getValue(), value);
+            scope.mVariables.put(name, new Pair<Boolean, Obj>(true, value));
+          }
+          return true;
+        }
+      }
       scope = scope.getParent();
     }
     
     return false;
   }
+  
+  /**
+   * Assigns the given value to the local variable that the given name was
+   * resolved to. Like {@link #lookUp(String, ResolvedName)}, this falls back to
+   * assigning by name if the resolved variable can't be found.
+   */
+  public boolean assign(String name, ResolvedName resolved, Obj value) {
+    Scope scope = ancestor(resolved);
+    if (scope != null) {
+      int slot = resolved.getSlot();
+      if (scope.mSlots[slot] != null) {
+        // Only assign if the variable is mutable.
+        // TODO(bob): Should be a static error.
+        if (scope.mIsSlotMutable[slot]) {
+          bindingChanged(scope, scope.mSlots[slot], value);
+          scope.mSlots[slot] = value;
+        }
+        return true;
+      }
+    }
+    
+    return assign(name, value);
+  }
 
   public boolean define(boolean isMutable, String name, Obj value) {
     Expect.notEmpty(name);
     Expect.notNull(value);
 
     // Don't allow redefinition.
-    if (!mAllowRedefinition && (get(name) != null)) return false;
+    Obj existing = get(name);
+    if (!mAllowRedefinition && (existing != null)) return false;
 
-    mVariables.put(name, new Pair<Boolean, Obj>(isMutable, value));
+    bindingChanged(this, existing, value);
+
+    int slot = findSlot(name);
+    if (slot != -1) {
+      mSlots[slot] = value;
+      mIsSlotMutable[slot] = isMutable;
+    } else {
+      variables().put(name, new Pair<Boolean, Obj>(isMutable, value));
+    }
     
     // If we're defining a top-level public variable, export it too.
     if ((mParent == null) && Name.isPublic(name)) {
@@ -153,12 +251,17 @@ public class Scope {
   public Obj get(String name) {
     Expect.notEmpty(name);
     
+    int slot = findSlot(name);
+    if (slot != -1) return mSlots[slot];
+    
+    if (mVariables == null) return null;
     Pair<Boolean, Obj> variable = mVariables.get(name);
     if (variable == null) return null;
     return variable.getValue();
   }
   
   public Multimethod getMultimethod(String name) {
+    if (mMultimethods == null) return null;
     return mMultimethods.get(name);
   }
   
@@ -174,12 +277,16 @@ public class Scope {
   public Multimethod defineMultimethod(String name, String doc) {
     if ((mParent == null) && Name.isPublic(name)) {
       // Top-level public name, so define it globally.
-      Multimethod multimethod = mModule.getInterpreter().getMultimethods().get(name);
+      ConcurrentMap<String, Multimethod> multimethods =
+          mModule.getInterpreter().getMultimethods();
+      Multimethod multimethod = multimethods.get(name);
       
-      // Only define it the first time if not found.
+      // Only define it the first time if not found. If another routine
+      // defines it at the same time, use whichever one got there first.
       if (multimethod == null) {
         multimethod = new Multimethod(doc);
-        mModule.getInterpreter().getMultimethods().put(name, multimethod);
+        Multimethod existing = multimethods.putIfAbsent(name, multimethod);
+        if (existing != null) multimethod = existing;
       }
       
       return multimethod;
@@ -190,24 +297,36 @@ public class Scope {
   }
 
   public Multimethod lookUpMultimethod(String name) {
+    Multimethod multimethod = lookUpLocalMultimethod(name);
+    if (multimethod != null) return multimethod;
+    
+    // It's not a local one, so see if it's global.
+    return lookUpGlobalMultimethod(name);
+  }
+  
+  /**
+   * Looks up a multimethod defined in this scope or one of its parents,
+   * ignoring global multimethods.
+   */
+  public Multimethod lookUpLocalMultimethod(String name) {
     Scope scope = this;
     
     // Walk up the parent scopes.
     while (scope != null) {
-      Multimethod multimethod = scope.mMultimethods.get(name);
+      Multimethod multimethod = scope.getMultimethod(name);
       if (multimethod != null) return multimethod;
       scope = scope.mParent;
     }
     
-    // It's not a local one, so see if it's global.
+    return null;
+  }
+  
+  public Multimethod lookUpGlobalMultimethod(String name) {
     return mModule.getInterpreter().getMultimethods().get(name);
   }
 
-  public Set<Entry<String, Pair<Boolean, Obj>>> entries() {
-    return mVariables.entrySet();
-  }
-  
   public Map<String, Multimethod> getMultimethods() {
+    if (mMultimethods == null) return Collections.emptyMap();
     return mMultimethods;
   }
   
@@ -217,14 +336,27 @@ public class Scope {
     
     Scope scope = this;
     while (scope != null) {
-      for (Entry<String, Pair<Boolean, Obj>> entry : scope.entries()) {
-        if (entry.getValue().getKey()) {
-          builder.append("var ");
-        } else {
-          builder.append("val ");
+      if (scope.mLayout != null) {
+        for (int i = 0; i < scope.mSlots.length; i++) {
+          // Skip variables that haven't been bound yet.
+          if (scope.mSlots[i] == null) continue;
+          
+          builder.append(scope.mIsSlotMutable[i] ? "var " : "val ");
+          builder.append(scope.mLayout.getName(i))
+                 .append(" = ").append(scope.mSlots[i]).append("\n");
+        }
+      }
+      
+      if (scope.mVariables != null) {
+        for (Entry<String, Pair<Boolean, Obj>> entry : scope.mVariables.entrySet()) {
+          if (entry.getValue().getKey()) {
+            builder.append("var ");
+          } else {
+            builder.append("val ");
+          }
+          builder.append(entry.getKey())
+                 .append(" = ").append(entry.getValue().getValue()).append("\n");
         }
-        builder.append(entry.getKey())
-               .append(" = ").append(entry.getValue().getValue()).append("\n");
       }
       
       for (Entry<String, Multimethod> multimethod : scope.getMultimethods().entrySet()) {
@@ -242,20 +374,100 @@ public class Scope {
   }
 
   private Multimethod getOrCreateMultimethod(String name, String doc) {
-    Multimethod multimethod = mMultimethods.get(name);
+    Multimethod multimethod = getMultimethod(name);
     
     // Only define it the first time if not found.
     if (multimethod == null) {
       multimethod = new Multimethod(doc);
-      mMultimethods.put(name, multimethod);
+      multimethods().put(name, multimethod);
     }
     
     return multimethod;
   }
   
+  /**
+   * Walks up to the scope that the given resolved name refers to. Returns null
+   * if the scope found there isn't the one the name was resolved in.
+   */
+  private Scope ancestor(ResolvedName resolved) {
+    Scope scope = this;
+    for (int i = resolved.getDepth(); i > 0 && scope != null; i--) {
+      scope = scope.mParent;
+    }
+    
+    if ((scope == null) || (scope.mLayout != resolved.getLayout())) return null;
+    return scope;
+  }
+  
+  /**
+   * Gets a number that changes whenever a variable that refers to a class is
+   * defined or assigned in this scope or any scope enclosing it. Anything that
+   * caches the class a name evaluates to in this scope can use this to tell
+   * if it may be stale.
+   */
+  public int getClassVersion() {
+    // Each scope's count only goes up, so the sum changes if any of them do.
+    int version = 0;
+    for (Scope scope = this; scope != null; scope = scope.mParent) {
+      version += scope.mClassVersion;
+    }
+    
+    return version;
+  }
+  
+  /**
+   * Called when a variable in the given scope is about to be bound to a new
+   * value. If a class is involved, invalidates whatever may have cached what
+   * that name refers to.
+   */
+  private static void bindingChanged(Scope scope, Obj oldValue,
+      Obj newValue) {
+    if (!(oldValue instanceof ClassObj) && !(newValue instanceof ClassObj)) {
+      return;
+    }
+    
+    if (scope.mParent == null) {
+      // A new top-level variable can't shadow anything, so only rebinding
+      // one matters.
+      if (oldValue == null) return;
+      
+      // Method patterns may refer to top-level classes by name.
+      Multimethod.invalidateAll();
+    }
+    
+    scope.mClassVersion++;
+  }
+  
+  private int findSlot(String name) {
+    if (mLayout == null) return -1;
+    return mLayout.find(name);
+  }
+  
+  // Most local scopes never define anything by name, so these maps are only
+  // created when needed.
+  private Map<String, Pair<Boolean, Obj>> variables() {
+    if (mVariables == null) {
+      mVariables = new HashMap<String, Pair<Boolean, Obj>>();
+    }
+    return mVariables;
+  }
+  
+  private Map<String, Multimethod> multimethods() {
+    if (mMultimethods == null) {
+      mMultimethods = new HashMap<String, Multimethod>();
+    }
+    return mMultimethods;
+  }
+  
   private final boolean mAllowRedefinition;
   private final Scope mParent;
   private final Module mModule;
-  private final Map<String, Pair<Boolean, Obj> > mVariables = new HashMap<String, Pair<Boolean, Obj>>();
-  private final Map<String, Multimethod> mMultimethods = new HashMap<String, Multimethod>();
+  private ScopeLayout mLayout;
+  private Obj[] mSlots;
+  private boolean[] mIsSlotMutable;
+  private Map<String, Pair<Boolean, Obj>> mVariables;
+  private Map<String, Multimethod> mMultimethods;
+  
+  // How many times a variable referring to a class has been bound here.
+  private volatile int mClassVersion = 0;
 }
@@ -0,0 +1,98 @@
+package com.stuffwithstuff.magpie.interpreter;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Describes which fields an object has and where each one is stored. Objects
+ * with the same fields share a single Shape, so each object only needs an
+ * array of field values instead of its own map from names to values.
+ * 
+ * Shapes form a tree. Adding a new field to an object moves it from its
+ * current shape to a child shape with that field appended. Since objects of
+ * the same class almost always get their fields in the same order, they end
+ * up sharing shapes.
+ */
+public class Shape {
+  /**
+   * The shape of an object with no fields.
+   */
+  public static final Shape EMPTY = new Shape(new String[0]);
+  
+  /**
+   * Gets the index where the field with the given name is stored, or -1 if
+   * objects of this shape don't have that field.
+   */
+  public int indexOf(String name) {
+    for (int i = 0; i < mNames.length; i++) {
+      if (mNames[i].equals(name)) return i;
+    }
+    
+    return -1;
+  }
+  
+  public String getName(int index) { return mNames[index]; }
+  
+  public int size() { return mNames.length; }
+  
+  /**
+   * Gets the shape of a tuple with the given number of fields.
+   */
+  public static Shape tuple(int count) {
+    if (count < sTuples.length) {
+      Shape shape = sTuples[count];
+      if (shape != null) return shape;
+    }
+    
+    Shape shape = EMPTY;
+    for (int i = 0; i < count; i++) {
+      shape = shape.with(Name.getTupleField(i));
+    }
+    
+    // Racing threads will find the same shape, so it doesn't matter which
+    // one stores it.
+    if (count < sTuples.length) sTuples[count] = shape;
+    return shape;
+  }
+  
+  /**
+   * Gets the shape of an object with this shape's fields, plus the given one.
+   */
+  public Shape with(String name) {
+    Shape shape = mTransitions.get(name);
+    if (shape != null) return shape;
+    
+    String[] names = new String[mNames.length + 1];
+    System.arraycopy(mNames, 0, names, 0, mNames.length);
+    names[mNames.length] = name;
+    
+    // If another thread added the same transition first, use its shape so
+    // that objects keep sharing them.
+    shape = new Shape(names);
+    Shape existing = mTransitions.putIfAbsent(name, shape);
+    return (existing != null) ? existing : shape;
+  }
+  
+  @Override
+  public String toString() {
+    StringBuilder builder = new StringBuilder();
+    builder.append("(");
+    for (int i = 0; i < mNames.length; i++) {
+      if (i > 0) builder.append(", ");
+      builder.append(mNames[i]);
+    }
+    builder.append(")");
+    return builder.toString();
+  }
+  
+  private Shape(String[] names) {
+    mNames = names;
+  }
+  
+  // The shapes of the tuples small enough to be worth caching, by arity.
+  private static final Shape[] sTuples = new Shape[16];
+  
+  private final String[] mNames;
+  private final ConcurrentMap<String, Shape> mTransitions =
+      new ConcurrentHashMap<String, Shape>();
+}
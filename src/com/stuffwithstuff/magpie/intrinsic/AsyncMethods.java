@@ -1,21 +1,33 @@
 package com.stuffwithstuff.magpie.intrinsic;
 
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.RecursiveAction;
+
 import com.stuffwithstuff.magpie.Def;
 import com.stuffwithstuff.magpie.Doc;
 import com.stuffwithstuff.magpie.interpreter.Channel;
 import com.stuffwithstuff.magpie.interpreter.ClassObj;
 import com.stuffwithstuff.magpie.interpreter.Context;
+import com.stuffwithstuff.magpie.interpreter.ErrorException;
+import com.stuffwithstuff.magpie.interpreter.ExecutionState;
 import com.stuffwithstuff.magpie.interpreter.FnObj;
+import com.stuffwithstuff.magpie.interpreter.Interpreter;
+import com.stuffwithstuff.magpie.interpreter.Name;
 import com.stuffwithstuff.magpie.interpreter.Obj;
+import com.stuffwithstuff.magpie.interpreter.Promise;
 import com.stuffwithstuff.magpie.interpreter.Routine;
+import com.stuffwithstuff.magpie.interpreter.Scheduler;
 
 // TODO(bob): This is all very rough and hacked together.
 public class AsyncMethods {
   // TODO(bob): Hackish.
-  @Def("_setClasses(== Channel)")
+  @Def("_setClasses(== Channel, == Future)")
   public static class SetClasses implements Intrinsic {
     public Obj invoke(Context context, Obj left, Obj right) {
-      sChannelClass = right.asClass();
+      sChannelClass = right.getField(0).asClass();
+      sFutureClass = right.getField(1).asClass();
       
       return context.nothing();
     }
@@ -56,6 +68,28 @@ public class AsyncMethods {
     }
   }
   
+  @Def("(is Channel) sendAll(values is Indexable)")
+  @Doc("Sends each of the values in the given Array or List to the\n" +
+       "channel, in order. Blocks if the channel's buffer fills up.")
+  public static class SendAll implements Intrinsic {
+    public Obj invoke(Context context, Obj left, Obj right) {
+      Channel channel = (Channel) left.getValue();
+      
+      if (!(right.getValue() instanceof List<?>)) {
+        throw context.error(Name.ARGUMENT_ERROR,
+            "Can only send all of the values in an Array or List.");
+      }
+      
+      try {
+        channel.sendAll(right.asList());
+        return context.nothing();
+      } catch (InterruptedException e) {
+        // TODO(bob): Better error.
+        throw context.error("Error", "Interrupted");
+      }
+    }
+  }
+  
   @Def("(is Channel) receive()")
   @Doc("Reads a value from the channel. If the channe's buffer is empty,\n" +
        "then this blocks until another thread sends a value to it.")
@@ -72,8 +106,75 @@ public class AsyncMethods {
     }
   }
 
+  @Def("(is Channel) receive(timeout is Int)")
+  @Doc("Reads a value from the channel, waiting at most the given number\n" +
+       "of milliseconds for one to be sent. Returns nothing if it times out.")
+  public static class Receive_Timeout implements Intrinsic {
+    public Obj invoke(Context context, Obj left, Obj right) {
+      Channel channel = (Channel) left.getValue();
+      
+      try {
+        Obj value = channel.receive(right.asInt());
+        if (value == null) return context.nothing();
+        return value;
+      } catch (InterruptedException e) {
+        // TODO(bob): Better error.
+        throw context.error("Error", "Interrupted");
+      }
+    }
+  }
+  
+  @Def("(is Channel) receiveUpTo(count is Int)")
+  @Doc("Waits until the channel has a value, then reads up to the given\n" +
+       "number of values that are available. Returns them in a List.")
+  public static class ReceiveUpTo implements Intrinsic {
+    public Obj invoke(Context context, Obj left, Obj right) {
+      Channel channel = (Channel) left.getValue();
+      
+      try {
+        List<Obj> values = new ArrayList<Obj>();
+        channel.receiveUpTo(right.asInt(), values);
+        return context.toList(values);
+      } catch (InterruptedException e) {
+        // TODO(bob): Better error.
+        throw context.error("Error", "Interrupted");
+      }
+    }
+  }
+  
+  @Def("(is Channel) drainTo(list is List)")
+  @Doc("Reads all of the values the channel has without waiting and adds\n" +
+       "them to the given List. Returns the number of values read.")
+  public static class DrainTo implements Intrinsic {
+    public Obj invoke(Context context, Obj left, Obj right) {
+      Channel channel = (Channel) left.getValue();
+      
+      int count = channel.drainTo(Integer.MAX_VALUE, right.asList());
+      return context.toObj(count);
+    }
+  }
+  
+  @Def("select(channels is Array)")
+  @Doc("Waits until one of the given channels has a value and receives\n" +
+       "it. Returns the channel and the value.")
+  public static class Select implements Intrinsic {
+    public Obj invoke(Context context, Obj left, Obj right) {
+      return select(context, right, -1);
+    }
+  }
+  
+  @Def("select(channels is Array, timeout is Int)")
+  @Doc("Waits at most the given number of milliseconds until one of the\n" +
+       "given channels has a value and receives it. Returns the channel and\n" +
+       "the value, or nothing if it times out.")
+  public static class Select_Timeout implements Intrinsic {
+    public Obj invoke(Context context, Obj left, Obj right) {
+      return select(context, right.getField(0), right.getField(1).asInt());
+    }
+  }
+  
   @Def("run(body is Function)")
-  @Doc("Creates a new thread and runs the function concurrently on it.")
+  @Doc("Runs the function concurrently on the routine scheduler.")
   public static class Run implements Intrinsic {
     public Obj invoke(Context context, Obj left, Obj right) {
       FnObj function = right.asFn();
@@ -85,13 +186,138 @@ public class AsyncMethods {
     }
   }
 
+  @Def("(== Future) new()")
+  @Doc("Creates a new Future that will be given a value by calling\n" +
+       "complete() on it.")
+  public static class NewFuture implements Intrinsic {
+    public Obj invoke(Context context, Obj left, Obj right) {
+      return context.instantiate(sFutureClass, new Promise());
+    }
+  }
+  
+  @Def("(== Future) new(body is Function)")
+  @Doc("Runs the function concurrently and returns a Future for its\n" +
+       "result. If the function throws an error, waiting on the Future\n" +
+       "throws it.")
+  public static class NewFuture_Body implements Intrinsic {
+    public Obj invoke(Context context, Obj left, Obj right) {
+      Promise promise = new Promise();
+      
+      Routine routine = new Routine(context, right.asFn(), promise);
+      routine.start();
+      
+      return context.instantiate(sFutureClass, promise);
+    }
+  }
+  
+  @Def("(is Future) complete(value)")
+  @Doc("Gives the Future its value. Returns false if it already has one.")
+  public static class Complete implements Intrinsic {
+    public Obj invoke(Context context, Obj left, Obj right) {
+      Promise promise = (Promise) left.getValue();
+      return context.toObj(promise.complete(right));
+    }
+  }
+  
+  @Def("(is Future) fail(error)")
+  @Doc("Completes the Future with an error that will be thrown when it's\n" +
+       "waited on. Returns false if it already has a value.")
+  public static class Fail implements Intrinsic {
+    public Obj invoke(Context context, Obj left, Obj right) {
+      Promise promise = (Promise) left.getValue();
+      return context.toObj(promise.fail(right));
+    }
+  }
+  
+  @Def("(is Future) isDone")
+  @Doc("Gets whether the Future has a value (or error) yet.")
+  public static class IsDone implements Intrinsic {
+    public Obj invoke(Context context, Obj left, Obj right) {
+      Promise promise = (Promise) left.getValue();
+      return context.toObj(promise.isDone());
+    }
+  }
+  
+  @Def("(is Future) await()")
+  @Doc("Waits until the Future has a value and returns it.")
+  public static class Await implements Intrinsic {
+    public Obj invoke(Context context, Obj left, Obj right) {
+      Promise promise = (Promise) left.getValue();
+      
+      try {
+        return promise.await();
+      } catch (InterruptedException e) {
+        // TODO(bob): Better error.
+        throw context.error("Error", "Interrupted");
+      }
+    }
+  }
+  
+  @Def("(is Future) await(timeout is Int)")
+  @Doc("Waits at most the given number of milliseconds for the Future to\n" +
+       "have a value and returns it. Returns nothing if it times out.")
+  public static class Await_Timeout implements Intrinsic {
+    public Obj invoke(Context context, Obj left, Obj right) {
+      Promise promise = (Promise) left.getValue();
+      
+      try {
+        Obj value = promise.await(right.asInt());
+        if (value == null) return context.nothing();
+        return value;
+      } catch (InterruptedException e) {
+        // TODO(bob): Better error.
+        throw context.error("Error", "Interrupted");
+      }
+    }
+  }
+  
+  @Def("(is Array) parallelMap(transform is Function)")
+  @Doc("Calls the function on each element of the Array in parallel and\n" +
+       "returns an Array of the results, in the same order.")
+  public static class Array_ParallelMap implements Intrinsic {
+    public Obj invoke(Context context, Obj left, Obj right) {
+      return context.toArray(parallel(context, left.asList(), right.asFn(),
+          true));
+    }
+  }
+  
+  @Def("(is List) parallelMap(transform is Function)")
+  @Doc("Calls the function on each element of the List in parallel and\n" +
+       "returns a List of the results, in the same order.")
+  public static class List_ParallelMap implements Intrinsic {
+    public Obj invoke(Context context, Obj left, Obj right) {
+      return context.toList(parallel(context, left.asList(), right.asFn(),
+          true));
+    }
+  }
+  
+  @Def("(is Array) parallelEach(action is Function)")
+  @Doc("Calls the function on each element of the Array in parallel and\n" +
+       "waits for them all to finish.")
+  public static class Array_ParallelEach implements Intrinsic {
+    public Obj invoke(Context context, Obj left, Obj right) {
+      parallel(context, left.asList(), right.asFn(), false);
+      return context.nothing();
+    }
+  }
+  
+  @Def("(is List) parallelEach(action is Function)")
+  @Doc("Calls the function on each element of the List in parallel and\n" +
+       "waits for them all to finish.")
+  public static class List_ParallelEach implements Intrinsic {
+    public Obj invoke(Context context, Obj left, Obj right) {
+      parallel(context, left.asList(), right.asFn(), false);
+      return context.nothing();
+    }
+  }
+  
   @Def("sleep(milliseconds is Int)")
   @Doc("Pauses the thread for a given number of milliseconds.")
   public static class Sleep implements Intrinsic {
     public Obj invoke(Context context, Obj left, Obj right) {
       long milliseconds = right.asInt();
       try {
-        Thread.sleep(milliseconds);
+        Scheduler.sleep(milliseconds);
       } catch (InterruptedException e) {
         // TODO(bob): Handle error.
         e.printStackTrace();
@@ -101,5 +327,123 @@ public class AsyncMethods {
     }
   }
   
+  private static Obj select(Context context, Obj channelsObj, long timeout) {
+    List<Obj> channelObjs = channelsObj.asList();
+    List<Channel> channels = new ArrayList<Channel>();
+    for (Obj channel : channelObjs) {
+      if (!(channel.getValue() instanceof Channel)) {
+        throw context.error(Name.ARGUMENT_ERROR,
+            "Can only select on channels.");
+      }
+      
+      channels.add((Channel) channel.getValue());
+    }
+    
+    try {
+      Obj[] value = new Obj[1];
+      int index = Channel.select(channels, timeout, value);
+      if (index == -1) return context.nothing();
+      
+      return context.toObj(channelObjs.get(index), value[0]);
+    } catch (InterruptedException e) {
+      // TODO(bob): Better error.
+      throw context.error("Error", "Interrupted");
+    }
+  }
+  
+  /**
+   * Creates a Future object for the given promise. The async module must be
+   * loaded first.
+   */
+  public static Obj toFuture(Context context, Promise promise) {
+    return context.instantiate(sFutureClass, promise);
+  }
+  
+  /**
+   * Calls the function on each of the items on the work-stealing pool. If
+   * collect is true, returns the results in order. If any of the calls throws
+   * an error, throws the error for the earliest item.
+   */
+  private static List<Obj> parallel(Context context, List<Obj> items,
+      FnObj function, boolean collect) {
+    // Copy the items so that changes to the list while the calls are running
+    // don't affect them.
+    Obj[] inputs = items.toArray(new Obj[items.size()]);
+    Obj[] results = new Obj[inputs.length];
+    ErrorException[] errors = new ErrorException[inputs.length];
+    
+    // Split the work into a few chunks for each thread so that it balances.
+    int parallelism = Scheduler.getPool().getParallelism();
+    int chunk = Math.max(1, inputs.length / (parallelism * 4));
+    
+    Scheduler.getPool().invoke(new ParallelTask(context, function, inputs,
+        results, errors, 0, inputs.length, chunk,
+        context.getInterpreter().forkState()));
+    
+    for (ErrorException error : errors) {
+      if (error != null) throw error;
+    }
+    
+    if (!collect) return null;
+    return new ArrayList<Obj>(Arrays.asList(results));
+  }
+  
+  private static class ParallelTask extends RecursiveAction {
+    public ParallelTask(Context context, FnObj function, Obj[] inputs,
+        Obj[] results, ErrorException[] errors, int start, int end,
+        int chunk, ExecutionState state) {
+      mContext = context;
+      mFunction = function;
+      mInputs = inputs;
+      mResults = results;
+      mErrors = errors;
+      mStart = start;
+      mEnd = end;
+      mChunk = chunk;
+      mState = state;
+    }
+    
+    @Override
+    protected void compute() {
+      if (mEnd - mStart <= mChunk) {
+        // Don't share state with whatever else this thread is running.
+        Interpreter interpreter = mContext.getInterpreter();
+        ExecutionState previous = interpreter.swapState(mState.fork());
+        try {
+          for (int i = mStart; i < mEnd; i++) {
+            try {
+              mResults[i] = mFunction.invoke(mContext, mInputs[i]);
+            } catch (ErrorException ex) {
+              mErrors[i] = ex;
+            }
+          }
+        } finally {
+          interpreter.swapState(previous);
+        }
+        return;
+      }
+      
+      int middle = (mStart + mEnd) / 2;
+      invokeAll(
+          new ParallelTask(mContext, mFunction, mInputs, mResults, mErrors,
+              mStart, middle, mChunk, mState),
+          new ParallelTask(mContext, mFunction, mInputs, mResults, mErrors,
+              middle, mEnd, mChunk, mState));
+    }
+    
+    private static final long serialVersionUID = 1L;
+    
+    private final Context mContext;
+    private final FnObj mFunction;
+    private final Obj[] mInputs;
+    private final Obj[] mResults;
+    private final ErrorException[] mErrors;
+    private final int mStart;
+    private final int mEnd;
+    private final int mChunk;
+    private final ExecutionState mState;
+  }
+  
   private static ClassObj sChannelClass;
+  private static ClassObj sFutureClass;
 }
@@ -0,0 +1,243 @@
+package com.stuffwithstuff.magpie.intrinsic;
+
+import java.nio.ByteBuffer;
+import java.nio.ReadOnlyBufferException;
+import java.nio.charset.Charset;
+
+import com.stuffwithstuff.magpie.Def;
+import com.stuffwithstuff.magpie.Doc;
+import com.stuffwithstuff.magpie.interpreter.ClassObj;
+import com.stuffwithstuff.magpie.interpreter.Context;
+import com.stuffwithstuff.magpie.interpreter.Name;
+import com.stuffwithstuff.magpie.interpreter.Obj;
+import com.stuffwithstuff.magpie.util.BufferPool;
+
+/**
+ * A ByteBuffer wraps a java.nio.ByteBuffer. Its position is always zero and
+ * its limit is the number of bytes it holds, so it can be passed straight to
+ * channels for writing.
+ */
+public class ByteBufferMethods {
+  // TODO(bob): Hackish.
+  @Def("_setClasses(== ByteBuffer)")
+  public static class SetClasses implements Intrinsic {
+    public Obj invoke(Context context, Obj left, Obj right) {
+      sByteBufferClass = right.asClass();
+      return context.nothing();
+    }
+  }
+
+  @Def("(== ByteBuffer) new(capacity is Int)")
+  @Doc("Creates a new empty ByteBuffer that can hold at least the given\n" +
+       "number of bytes, up to 1GB. Call release() when done with it so\n" +
+       "that its memory can be reused.")
+  public static class New implements Intrinsic {
+    public Obj invoke(Context context, Obj left, Obj right) {
+      int capacity = right.asInt();
+      if ((capacity < 0) || (capacity > BufferPool.MAX_CAPACITY)) {
+        throw context.error(Name.ARGUMENT_ERROR, "Capacity " + capacity +
+            " must be from 0 to " + BufferPool.MAX_CAPACITY + ".");
+      }
+      
+      try {
+        return wrap(context, BufferPool.acquire(capacity));
+      } catch (OutOfMemoryError e) {
+        // Direct buffers come out of a separate, smaller memory limit, so
+        // running out of it doesn't mean the interpreter is in trouble.
+        throw context.error("Error", "Not enough memory for a ByteBuffer " +
+            "of " + capacity + " bytes.");
+      }
+    }
+  }
+
+  @Def("(== ByteBuffer) new(text is String)")
+  @Doc("Creates a new ByteBuffer containing the given string encoded as\n" +
+       "UTF-8.")
+  public static class New_String implements Intrinsic {
+    public Obj invoke(Context context, Obj left, Obj right) {
+      return wrap(context, ByteBuffer.wrap(right.asString().getBytes(UTF8)));
+    }
+  }
+
+  @Def("(is ByteBuffer)[index is Int]")
+  @Doc("Gets the byte at the given index as an Int from 0 to 255.")
+  public static class Index implements Intrinsic {
+    public Obj invoke(Context context, Obj left, Obj right) {
+      ByteBuffer buffer = get(context, left);
+      int index = Indexable.validateIndex(context, buffer.limit(),
+          right.asInt());
+      return context.toObj(buffer.get(index) & 0xff);
+    }
+  }
+
+  @Def("(is ByteBuffer)[index is Int] = (value is Int)")
+  @Doc("Sets the byte at the given index. Returns the assigned value.")
+  public static class IndexAssign implements Intrinsic {
+    public Obj invoke(Context context, Obj left, Obj right) {
+      ByteBuffer buffer = get(context, left.getField(0));
+      int index = Indexable.validateIndex(context, buffer.limit(),
+          left.getField(1).asInt());
+
+      try {
+        buffer.put(index, (byte) right.asInt());
+        return right;
+      } catch (ReadOnlyBufferException e) {
+        throw context.error(Name.ARGUMENT_ERROR,
+            "The ByteBuffer is read-only.");
+      }
+    }
+  }
+
+  @Def("(is ByteBuffer) add(value is Int)")
+  @Doc("Appends the byte to the end of the ByteBuffer.")
+  public static class Add implements Intrinsic {
+    public Obj invoke(Context context, Obj left, Obj right) {
+      ByteBuffer buffer = get(context, left);
+      if (buffer.isReadOnly()) {
+        throw context.error(Name.ARGUMENT_ERROR,
+            "The ByteBuffer is read-only.");
+      }
+
+      int count = buffer.limit();
+      if (count == buffer.capacity()) {
+        throw context.error(Name.OUT_OF_BOUNDS_ERROR,
+            "The ByteBuffer is full.");
+      }
+
+      buffer.limit(count + 1);
+      buffer.put(count, (byte) right.asInt());
+      return right;
+    }
+  }
+
+  @Def("(is ByteBuffer) count")
+  @Doc("Gets the number of bytes in the ByteBuffer.")
+  public static class Count implements Intrinsic {
+    public Obj invoke(Context context, Obj left, Obj right) {
+      return context.toObj(get(context, left).limit());
+    }
+  }
+
+  @Def("(is ByteBuffer) capacity")
+  @Doc("Gets the number of bytes the ByteBuffer can hold.")
+  public static class Capacity implements Intrinsic {
+    public Obj invoke(Context context, Obj left, Obj right) {
+      return context.toObj(get(context, left).capacity());
+    }
+  }
+
+  @Def("(is ByteBuffer) clear()")
+  @Doc("Removes all of the bytes from the ByteBuffer.")
+  public static class Clear implements Intrinsic {
+    public Obj invoke(Context context, Obj left, Obj right) {
+      get(context, left).limit(0);
+      return context.nothing();
+    }
+  }
+
+  @Def("(is ByteBuffer) slice(from: from is Int, count: count is Int)")
+  @Doc("Gets a read-only ByteBuffer for the given range of bytes. It\n" +
+       "shares memory with this one, so no bytes are copied. It can't be\n" +
+       "used once this one has been released.")
+  public static class Slice implements Intrinsic {
+    public Obj invoke(Context context, Obj left, Obj right) {
+      ByteBuffer buffer = get(context, left);
+      int from = right.getField("from").asInt();
+      int count = right.getField("count").asInt();
+      
+      if ((from < 0) || (count < 0) || (from + count > buffer.limit())) {
+        throw context.error(Name.OUT_OF_BOUNDS_ERROR, "Range " + from +
+            " count " + count + " is out of bounds [0, " + buffer.limit() +
+            "].");
+      }
+      
+      // Slices are read-only so that one can't be mistaken for a whole
+      // pooled buffer when it's released.
+      ByteBuffer view = buffer.asReadOnlyBuffer();
+      view.position(from);
+      view.limit(from + count);
+      
+      // Keep track of which buffer owns the memory so that the slice stops
+      // working when it's released and the memory is reused.
+      Obj owner = left;
+      if (left.getValue() instanceof View) {
+        owner = ((View) left.getValue()).getOwner();
+      }
+      
+      return context.instantiate(sByteBufferClass,
+          new View(owner, view.slice()));
+    }
+  }
+
+  @Def("(is ByteBuffer) decode()")
+  @Doc("Decodes the bytes in the ByteBuffer as a UTF-8 string.")
+  public static class Decode implements Intrinsic {
+    public Obj invoke(Context context, Obj left, Obj right) {
+      // Decode a duplicate so that the buffer's position isn't touched.
+      ByteBuffer buffer = get(context, left).duplicate();
+      return context.toObj(UTF8.decode(buffer).toString());
+    }
+  }
+
+  @Def("(is ByteBuffer) release()")
+  @Doc("Returns the ByteBuffer's memory to be reused. The ByteBuffer\n" +
+       "can't be used after this.")
+  public static class Release implements Intrinsic {
+    public Obj invoke(Context context, Obj left, Obj right) {
+      ByteBuffer buffer = get(context, left);
+      boolean isView = left.getValue() instanceof View;
+      left.setValue(null);
+      
+      // A slice doesn't own its memory.
+      if (!isView) BufferPool.release(buffer);
+      return context.nothing();
+    }
+  }
+
+  /**
+   * Creates a new ByteBuffer object wrapping the given buffer.
+   */
+  public static Obj wrap(Context context, ByteBuffer buffer) {
+    return context.instantiate(sByteBufferClass, buffer);
+  }
+
+  /**
+   * Gets the buffer a ByteBuffer object wraps. Throws an error if it has
+   * been released.
+   */
+  public static ByteBuffer get(Context context, Obj obj) {
+    Object value = obj.getValue();
+    if (value instanceof View) {
+      View view = (View) value;
+      value = (view.getOwner().getValue() == null) ? null : view.getBuffer();
+    }
+    
+    ByteBuffer buffer = (ByteBuffer) value;
+    if (buffer == null) {
+      throw context.error(Name.ARGUMENT_ERROR,
+          "The ByteBuffer has been released.");
+    }
+
+    return buffer;
+  }
+
+  /**
+   * A ByteBuffer that points into the memory of another one.
+   */
+  private static class View {
+    public View(Obj owner, ByteBuffer buffer) {
+      mOwner = owner;
+      mBuffer = buffer;
+    }
+    
+    public Obj getOwner() { return mOwner; }
+    public ByteBuffer getBuffer() { return mBuffer; }
+    
+    private final Obj mOwner;
+    private final ByteBuffer mBuffer;
+  }
+  
+  private static final Charset UTF8 = Charset.forName("UTF-8");
+
+  private static ClassObj sByteBufferClass;
+}
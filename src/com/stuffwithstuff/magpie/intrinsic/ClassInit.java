@@ -25,8 +25,13 @@ public class ClassInit implements Callable {
 
   @Override
   public Obj invoke(Context context, Obj arg) {
+    return invoke(context, arg.getField(0), arg.getField(1));
+  }
+  
+  @Override
+  public Obj invoke(Context context, Obj left, Obj right) {
     // We don't care about the receiver.
-    arg = arg.getField(1);
+    Obj arg = right;
     
     Obj obj = context.getInterpreter().getConstructingObject();
 
@@ -21,10 +21,15 @@ public class ClassNew implements Callable {
 
   @Override
   public Obj invoke(Context context, Obj arg) {
+    return invoke(context, arg.getField(0), arg.getField(1));
+  }
+  
+  @Override
+  public Obj invoke(Context context, Obj left, Obj right) {
     // Get the class being constructed.
-    ClassObj classObj = arg.getField(0).asClass();
+    ClassObj classObj = left.asClass();
     return context.getInterpreter().constructNewObject(
-        context, classObj, arg.getField(1));
+        context, classObj, right);
   }
   
   @Override
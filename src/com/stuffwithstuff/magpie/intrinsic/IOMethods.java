@@ -4,6 +4,7 @@ import java.io.BufferedReader;
 import java.io.File;
 import java.io.IOException;
 import java.io.InputStreamReader;
+import java.nio.ByteBuffer;
 import java.util.ArrayList;
 import java.util.List;
 
@@ -11,9 +12,11 @@ import com.stuffwithstuff.magpie.Def;
 import com.stuffwithstuff.magpie.Doc;
 import com.stuffwithstuff.magpie.interpreter.ClassObj;
 import com.stuffwithstuff.magpie.interpreter.Context;
+import com.stuffwithstuff.magpie.interpreter.Name;
 import com.stuffwithstuff.magpie.interpreter.Obj;
 import com.stuffwithstuff.magpie.util.FileReader;
 import com.stuffwithstuff.magpie.util.FileWriter;
+import com.stuffwithstuff.magpie.util.MappedFile;
 
 public class IOMethods {
   // TODO(bob): There is a big hack here. We use the same "File" Magpie class
@@ -22,16 +25,19 @@ public class IOMethods {
   // wrong one.
   
   // TODO(bob): Hackish.
-  @Def("_setClasses(== File)")
+  @Def("_setClasses(== File, == MappedFile)")
   public static class SetClasses implements Intrinsic {
     public Obj invoke(Context context, Obj left, Obj right) {
-      sFileClass = right.asClass();
+      sFileClass = right.getField(0).asClass();
+      sMappedFileClass = right.getField(1).asClass();
       return context.nothing();
     }
   }
 
   @Def("(is File) close()")
-  @Doc("Closes the file.")
+  @Doc("Closes the file. Anything written to it that is still buffered is\n" +
+       "written out first. Files left open are closed when the program\n" +
+       "exits.")
   public static class Close implements Intrinsic {
     public Obj invoke(Context context, Obj left, Obj right) {
       if (left.getValue() instanceof FileReader) {
@@ -39,7 +45,11 @@ public class IOMethods {
         reader.close();
       } else {
         FileWriter writer = (FileWriter)left.getValue();
-        writer.close();
+        try {
+          writer.close();
+        } catch (IOException e) {
+          throw context.error("IOError", "Could not write.");
+        }
       }
       return context.nothing();
     }
@@ -101,6 +111,30 @@ public class IOMethods {
     }
   }
   
+  @Def("(is File) read(chunkSize is Int)")
+  @Doc("Reads the next chunkSize characters of the file as a string. The\n" +
+       "last chunk may be shorter. Returns nothing if at the end of the\n" +
+       "file.")
+  public static class Read_Chunk implements Intrinsic {
+    public Obj invoke(Context context, Obj left, Obj right) {
+      FileReader reader = (FileReader)left.getValue();
+      
+      int size = right.asInt();
+      if (size <= 0) {
+        throw context.error(Name.ARGUMENT_ERROR,
+            "Chunk size must be positive.");
+      }
+      
+      try {
+        String chunk = reader.readChunk(size);
+        if (chunk == null) return context.nothing();
+        return context.toObj(chunk);
+      } catch (IOException e) {
+        throw context.error("IOError", "Could not read.");
+      }
+    }
+  }
+  
   @Def("(is File) readLine()")
   @Doc("Reads a single line of text from the file. Returns nothing if at\n" +
        "the end of the file.")
@@ -205,6 +239,184 @@ public class IOMethods {
     }
   }
   
+  @Def("mmap(path is String)")
+  @Doc("Maps the file at the given path into memory for reading. Bytes\n" +
+       "are read straight from the mapping instead of being copied.")
+  public static class Mmap implements Intrinsic {
+    public Obj invoke(Context context, Obj left, Obj right) {
+      try {
+        MappedFile file = new MappedFile(right.asString());
+        return context.instantiate(sMappedFileClass, file);
+      } catch (IOException e) {
+        throw context.error("IOError", "Could not open file.");
+      }
+    }
+  }
+  
+  @Def("(is MappedFile) count")
+  @Doc("Gets the number of bytes in the file.")
+  public static class MappedFile_Count implements Intrinsic {
+    public Obj invoke(Context context, Obj left, Obj right) {
+      MappedFile file = (MappedFile)left.getValue();
+      if (file.size() > Integer.MAX_VALUE) {
+        throw context.error(Name.OUT_OF_BOUNDS_ERROR,
+            "The file is too large to count.");
+      }
+      
+      return context.toObj((int)file.size());
+    }
+  }
+  
+  @Def("(is MappedFile)[index is Int]")
+  @Doc("Gets the byte at the given index as an Int from 0 to 255.")
+  public static class MappedFile_Index implements Intrinsic {
+    public Obj invoke(Context context, Obj left, Obj right) {
+      MappedFile file = (MappedFile)left.getValue();
+      
+      try {
+        int index = Indexable.validateIndex(context,
+            (int)Math.min(file.size(), Integer.MAX_VALUE), right.asInt());
+        return context.toObj(file.get(index) & 0xff);
+      } catch (IOException e) {
+        throw context.error("IOError", "Could not read.");
+      }
+    }
+  }
+  
+  @Def("(is MappedFile) slice(from: from is Int, count: count is Int)")
+  @Doc("Gets a read-only ByteBuffer for the given range of the file. It\n" +
+       "is a view of the mapping, so no bytes are copied.")
+  public static class MappedFile_Slice implements Intrinsic {
+    public Obj invoke(Context context, Obj left, Obj right) {
+      MappedFile file = (MappedFile)left.getValue();
+      int from = right.getField("from").asInt();
+      int count = right.getField("count").asInt();
+      
+      if ((from < 0) || (count < 0) || (from + (long)count > file.size())) {
+        throw context.error(Name.OUT_OF_BOUNDS_ERROR, "Range " + from +
+            " count " + count + " is out of bounds [0, " + file.size() + "].");
+      }
+      
+      try {
+        return ByteBufferMethods.wrap(context, file.slice(from, count));
+      } catch (IOException e) {
+        throw context.error("IOError", "Could not read.");
+      }
+    }
+  }
+  
+  @Def("(is MappedFile) readLine()")
+  @Doc("Reads the next line from the file as a read-only ByteBuffer. Call\n" +
+       "decode() on it to get a string. Returns nothing if at the end of\n" +
+       "the file.")
+  public static class MappedFile_ReadLine implements Intrinsic {
+    public Obj invoke(Context context, Obj left, Obj right) {
+      MappedFile file = (MappedFile)left.getValue();
+      
+      try {
+        ByteBuffer line = file.readLine();
+        if (line == null) return context.nothing();
+        return ByteBufferMethods.wrap(context, line);
+      } catch (IOException e) {
+        throw context.error("IOError", "Could not read.");
+      }
+    }
+  }
+  
+  @Def("(is MappedFile) isOpen")
+  @Doc("Returns true if the file is open.")
+  public static class MappedFile_IsOpen implements Intrinsic {
+    public Obj invoke(Context context, Obj left, Obj right) {
+      MappedFile file = (MappedFile)left.getValue();
+      return context.toObj(file.isOpen());
+    }
+  }
+  
+  @Def("(is MappedFile) close()")
+  @Doc("Closes the file. ByteBuffers already read from it can still be\n" +
+       "used.")
+  public static class MappedFile_Close implements Intrinsic {
+    public Obj invoke(Context context, Obj left, Obj right) {
+      MappedFile file = (MappedFile)left.getValue();
+      try {
+        file.close();
+        return context.nothing();
+      } catch (IOException e) {
+        throw context.error("IOError", "Could not close file.");
+      }
+    }
+  }
+  
+  @Def("(is File) writeInts(values is Indexable)")
+  @Doc("Writes each of the Ints in the given Array or List to this File\n" +
+       "the same way writeInt32 does.")
+  public static class WriteInts implements Intrinsic {
+    public Obj invoke(Context context, Obj left, Obj right) {
+      FileWriter writer = (FileWriter)left.getValue();
+      List<Obj> values = toIntList(context, right);
+      
+      try {
+        for (Obj value : values) {
+          writer.writeInt32(value.asInt());
+        }
+        return context.nothing();
+      } catch (IOException e) {
+        throw context.error("IOError", "Could not write.");
+      }
+    }
+  }
+  
+  @Def("(is File) writeBytes(values is Indexable)")
+  @Doc("Writes each of the Ints in the given Array or List to this File\n" +
+       "as a byte (value from 0 to 255 inclusive).")
+  public static class WriteBytes implements Intrinsic {
+    public Obj invoke(Context context, Obj left, Obj right) {
+      FileWriter writer = (FileWriter)left.getValue();
+      List<Obj> values = toIntList(context, right);
+      
+      try {
+        for (Obj value : values) {
+          writer.writeByte(value.asInt());
+        }
+        return context.nothing();
+      } catch (IOException e) {
+        throw context.error("IOError", "Could not write.");
+      }
+    }
+  }
+  
+  @Def("(is File) writeBytes(bytes is ByteBuffer)")
+  @Doc("Writes the contents of the ByteBuffer to this File.")
+  public static class WriteBytes_Buffer implements Intrinsic {
+    public Obj invoke(Context context, Obj left, Obj right) {
+      FileWriter writer = (FileWriter)left.getValue();
+      
+      try {
+        // Write from a duplicate so the buffer's position doesn't move.
+        writer.writeBytes(ByteBufferMethods.get(context, right).duplicate());
+        return context.nothing();
+      } catch (IOException e) {
+        throw context.error("IOError", "Could not write.");
+      }
+    }
+  }
+  
+  @Def("(is File) flush()")
+  @Doc("Writes any data buffered by the write methods out to the file.\n" +
+       "This happens automatically when the buffer fills up and when the\n" +
+       "file is closed.")
+  public static class Flush implements Intrinsic {
+    public Obj invoke(Context context, Obj left, Obj right) {
+      FileWriter writer = (FileWriter)left.getValue();
+      try {
+        writer.flush();
+        return context.nothing();
+      } catch (IOException e) {
+        throw context.error("IOError", "Could not write.");
+      }
+    }
+  }
+  
   @Def("(is Directory) _contents")
   @Doc("Gets the contents of the directory.")
   public static class Directory_Iterate implements Intrinsic {
@@ -221,5 +433,27 @@ public class IOMethods {
     }
   }
   
+  /**
+   * Makes sure the given object is an Array or List of Ints so that a bulk
+   * write doesn't fail halfway through.
+   */
+  private static List<Obj> toIntList(Context context, Obj obj) {
+    if (!(obj.getValue() instanceof List<?>)) {
+      throw context.error(Name.ARGUMENT_ERROR,
+          "Can only write the values in an Array or List.");
+    }
+    
+    List<Obj> values = obj.asList();
+    for (Obj value : values) {
+      if (!(value.getValue() instanceof Integer)) {
+        throw context.error(Name.ARGUMENT_ERROR,
+            "Can only write Int values.");
+      }
+    }
+    
+    return values;
+  }
+  
   private static ClassObj sFileClass;
+  private static ClassObj sMappedFileClass;
 }
@@ -26,39 +26,43 @@ public class IntMethods {
   @Def("(left is Int) +(right is Int)")
   @Doc("Adds the two numbers.")
   public static class Add extends ArithmeticOperator {
-    protected int perform(int left, int right) { return left + right; }
+    public int perform(int left, int right) { return left + right; }
   }
   
   @Def("(left is Int) -(right is Int)")
   @Doc("Subtracts the two numbers.")
   public static class Subtract extends ArithmeticOperator {
-    protected int perform(int left, int right) { return left - right; }
+    public int perform(int left, int right) { return left - right; }
   }
   
   @Def("(left is Int) *(right is Int)")
   @Doc("Multiplies the two numbers.")
   public static class Multiply extends ArithmeticOperator {
-    protected int perform(int left, int right) { return left * right; }
+    public int perform(int left, int right) { return left * right; }
   }
   
   @Def("(left is Int) /(right is Int)")
   @Doc("Divides the two numbers.")
   public static class Divide extends ArithmeticOperator {
-    protected int perform(int left, int right) { return left / right; }
+    public int perform(int left, int right) { return left / right; }
   }
   
   @Def("(left is Int) %(right is Int)")
   @Doc("Returns left modulo right.")
   public static class Modulo extends ArithmeticOperator {
-    protected int perform(int left, int right) { return left % right; }
+    public int perform(int left, int right) { return left % right; }
   }
 
-  private abstract static class ArithmeticOperator implements Intrinsic {
+  /**
+   * Base class for the intrinsics that do arithmetic on two ints. The
+   * compiler looks for these so it can do the arithmetic inline.
+   */
+  public abstract static class ArithmeticOperator implements Intrinsic {
     public Obj invoke(Context context, Obj left, Obj right) {
       return context.toObj(perform(left.asInt(), right.asInt()));
     }
     
-    protected abstract int perform(int left, int right);
+    public abstract int perform(int left, int right);
   }
   
   @Def("(left is Int) ==(right is Int)")
@@ -74,7 +78,10 @@ public class IntMethods {
        "they are the same.")
   public static class Compare implements Intrinsic {
     public Obj invoke(Context context, Obj left, Obj right) {
-      return context.toObj(((Integer)left.asInt()).compareTo(right.asInt()));
+      int leftInt = left.asInt();
+      int rightInt = right.asInt();
+      return context.toObj(leftInt < rightInt ? -1 :
+          (leftInt > rightInt ? 1 : 0));
     }
   }
   
@@ -19,6 +19,13 @@ public class IntrinsicCallable implements Callable {
     return mCallable.invoke(context, arg.getField(0), arg.getField(1));
   }
   
+  @Override
+  public Obj invoke(Context context, Obj left, Obj right) {
+    return mCallable.invoke(context, left, right);
+  }
+  
+  public Intrinsic getIntrinsic() { return mCallable; }
+  
   @Override
   public Pattern getPattern() { return mPattern; }
 
@@ -1,10 +1,5 @@
 package com.stuffwithstuff.magpie.intrinsic;
 
-import java.util.HashSet;
-import java.util.Map;
-import java.util.Set;
-import java.util.Map.Entry;
-
 import com.stuffwithstuff.magpie.Def;
 import com.stuffwithstuff.magpie.Doc;
 import com.stuffwithstuff.magpie.ast.Expr;
@@ -14,6 +9,7 @@ import com.stuffwithstuff.magpie.interpreter.FnObj;
 import com.stuffwithstuff.magpie.interpreter.Name;
 import com.stuffwithstuff.magpie.interpreter.Obj;
 import com.stuffwithstuff.magpie.interpreter.PatternTester;
+import com.stuffwithstuff.magpie.interpreter.Shape;
 import com.stuffwithstuff.magpie.parser.MagpieParser;
 import com.stuffwithstuff.magpie.parser.ParseException;
 import com.stuffwithstuff.magpie.parser.StringReader;
@@ -95,29 +91,52 @@ public class IntrinsicMethods {
   @Doc("Returns true if the two records have the same fields.")
   public static class Equals_Record implements Intrinsic {
     public Obj invoke(Context context, Obj left, Obj right) {
-      Map<String, Obj> fields = left.getFields();
-      Set<String> compared = new HashSet<String>();
+      // Records with the same shape store the same fields in the same slots.
+      Shape leftShape = left.getShape();
+      Shape rightShape = right.getShape();
+      if (leftShape == rightShape) {
+        for (int i = 0; i < leftShape.size(); i++) {
+          if (!fieldsEqual(context, left.getFieldAt(i),
+              right.getFieldAt(i))) {
+            return context.toObj(false);
+          }
+        }
+        
+        return context.toObj(true);
+      }
       
       // Make sure the right record has all of the left record's fields.
-      for (Entry<String, Obj> entry : fields.entrySet()) {
-        Obj rightField = right.getField(entry.getKey());
-        if (rightField == null) return context.toObj(false);
-        if (!context.getInterpreter().objectsEqual(
-            entry.getValue(), rightField)) {
+      int count = 0;
+      for (int i = 0; i < leftShape.size(); i++) {
+        Obj leftField = left.getFieldAt(i);
+        if (leftField == null) continue;
+        
+        count++;
+        Obj rightField = right.getField(leftShape.getName(i));
+        if (!fieldsEqual(context, leftField, rightField)) {
           return context.toObj(false);
         }
-        compared.add(entry.getKey());
       }
       
       // Make sure the right record doesn't have any extra fields.
-      for (String field : right.getFields().keySet()) {
-        if (!compared.contains(field)) return context.toObj(false);
+      for (int i = 0; i < rightShape.size(); i++) {
+        if (right.getFieldAt(i) != null) count--;
       }
       
+      if (count != 0) return context.toObj(false);
       return context.toObj(true);
     }
   }
   
+  /**
+   * Compares two record fields. A field that isn't set is only equal to
+   * another field that isn't set.
+   */
+  private static boolean fieldsEqual(Context context, Obj left, Obj right) {
+    if ((left == null) || (right == null)) return left == right;
+    return context.getInterpreter().objectsEqual(left, right);
+  }
+  
   @Def("(this) toString")
   @Doc("Returns a generic string representation of the object.")
   public static class ToString implements Intrinsic {
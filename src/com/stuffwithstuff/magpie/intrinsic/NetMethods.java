@@ -1,16 +1,21 @@
 package com.stuffwithstuff.magpie.intrinsic;
 
-import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
-import java.io.InputStreamReader;
-import java.io.PrintStream;
-import java.net.ServerSocket;
-import java.net.Socket;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
 
 import com.stuffwithstuff.magpie.Def;
 import com.stuffwithstuff.magpie.Doc;
 import com.stuffwithstuff.magpie.interpreter.ClassObj;
 import com.stuffwithstuff.magpie.interpreter.Context;
+import com.stuffwithstuff.magpie.interpreter.EventLoop;
 import com.stuffwithstuff.magpie.interpreter.Name;
 import com.stuffwithstuff.magpie.interpreter.Obj;
 
@@ -28,34 +33,96 @@ public class NetMethods {
   }
 
   @Def("(== ServerSocket) new(port is Int)")
-  @Doc("Creates a new ServerSocket listening on the given port.")
+  @Doc("Creates a new ServerSocket listening on the given port. If the\n" +
+       "port is zero, one will be picked for you.")
   public static class ServerSocket_New implements Intrinsic {
     public Obj invoke(Context context, Obj left, Obj right) {
       try {
-        ServerSocket socket = new ServerSocket(right.asInt());
-        return context.instantiate(sServerSocketClass, socket);
+        ServerSocketChannel channel = ServerSocketChannel.open();
+        channel.socket().bind(new InetSocketAddress(right.asInt()));
+        channel.configureBlocking(false);
+        return context.instantiate(sServerSocketClass, channel);
       } catch (IOException e) {
         throw context.error(Name.IO_ERROR, e.getMessage());
       }
     }
   }
 
+  @Def("(is ServerSocket) port")
+  @Doc("Gets the port the ServerSocket is listening on.")
+  public static class ServerSocket_Port implements Intrinsic {
+    public Obj invoke(Context context, Obj left, Obj right) {
+      ServerSocketChannel channel = (ServerSocketChannel) left.getValue();
+      return context.toObj(channel.socket().getLocalPort());
+    }
+  }
+
   @Def("(is ServerSocket) accept()")
   @Doc("Waits until a connection is made to the ServerSocket and then\n" +
-       "returns a Socket to communicate.")
+       "returns a Socket to communicate. Returns nothing if the\n" +
+       "ServerSocket is closed.")
   public static class Accept implements Intrinsic {
     public Obj invoke(Context context, Obj left, Obj right) {
-      ServerSocket serverSocket = (ServerSocket) left.getValue();
+      ServerSocketChannel serverChannel = (ServerSocketChannel) left.getValue();
       
       try {
-        SocketWrapper socket = new SocketWrapper(serverSocket.accept());
-        return context.instantiate(sSocketClass, socket);
+        SocketChannel channel;
+        while ((channel = serverChannel.accept()) == null) {
+          EventLoop.await(serverChannel, SelectionKey.OP_ACCEPT);
+        }
+        
+        return context.instantiate(sSocketClass, new SocketWrapper(channel));
+      } catch (ClosedChannelException e) {
+        return context.nothing();
+      } catch (IOException e) {
+        throw context.error(Name.IO_ERROR, e.getMessage());
+      } catch (InterruptedException e) {
+        // TODO(bob): Better error.
+        throw context.error("Error", "Interrupted");
+      }
+    }
+  }
+
+  @Def("(is ServerSocket) close()")
+  @Doc("Stops listening for connections.")
+  public static class ServerSocket_Close implements Intrinsic {
+    public Obj invoke(Context context, Obj left, Obj right) {
+      ServerSocketChannel channel = (ServerSocketChannel) left.getValue();
+      try {
+        EventLoop.close(channel);
+        return context.nothing();
       } catch (IOException e) {
         throw context.error(Name.IO_ERROR, e.getMessage());
       }
     }
   }
 
+  @Def("(== Socket) new(host is String, port is Int)")
+  @Doc("Opens a Socket connected to the given host and port.")
+  public static class Socket_New implements Intrinsic {
+    public Obj invoke(Context context, Obj left, Obj right) {
+      String host = right.getField(0).asString();
+      int port = right.getField(1).asInt();
+      
+      try {
+        SocketChannel channel = SocketChannel.open();
+        channel.configureBlocking(false);
+        if (!channel.connect(new InetSocketAddress(host, port))) {
+          do {
+            EventLoop.await(channel, SelectionKey.OP_CONNECT);
+          } while (!channel.finishConnect());
+        }
+        
+        return context.instantiate(sSocketClass, new SocketWrapper(channel));
+      } catch (IOException e) {
+        throw context.error(Name.IO_ERROR, e.getMessage());
+      } catch (InterruptedException e) {
+        // TODO(bob): Better error.
+        throw context.error("Error", "Interrupted");
+      }
+    }
+  }
+
   @Def("(is Socket) readLine()")
   @Doc("Reads a line of text from the Socket. Returns nothing if the\n" +
        "there is no more to read.")
@@ -63,24 +130,77 @@ public class NetMethods {
     public Obj invoke(Context context, Obj left, Obj right) {
       SocketWrapper socket = (SocketWrapper) left.getValue();
       
-      String line;
       try {
-        line = socket.readLine();
+        String line = socket.readLine();
         if (line == null) return context.nothing();
         return context.toObj(line);
       } catch (IOException e) {
         throw context.error(Name.IO_ERROR, e.getMessage());
+      } catch (InterruptedException e) {
+        // TODO(bob): Better error.
+        throw context.error("Error", "Interrupted");
       }
     }
   }
 
-  @Def("(is Socket) write(text as String)")
+  @Def("(is Socket) write(text is String)")
   @Doc("Writes the given string to the Socket.")
   public static class Write implements Intrinsic {
     public Obj invoke(Context context, Obj left, Obj right) {
       SocketWrapper socket = (SocketWrapper) left.getValue();
-      socket.write(right.asString());
-      return context.nothing();
+      
+      try {
+        socket.write(right.asString());
+        return context.nothing();
+      } catch (IOException e) {
+        throw context.error(Name.IO_ERROR, e.getMessage());
+      } catch (InterruptedException e) {
+        // TODO(bob): Better error.
+        throw context.error("Error", "Interrupted");
+      }
+    }
+  }
+
+  @Def("(is Socket) read(into: buffer is ByteBuffer)")
+  @Doc("Reads bytes from the Socket and appends them to the ByteBuffer.\n" +
+       "Waits until at least one byte is available. Returns the number of\n" +
+       "bytes read, which is zero if the buffer is full, or nothing if\n" +
+       "there is no more to read.")
+  public static class Read_Into implements Intrinsic {
+    public Obj invoke(Context context, Obj left, Obj right) {
+      SocketWrapper socket = (SocketWrapper) left.getValue();
+      ByteBuffer buffer = ByteBufferMethods.get(context,
+          right.getField("into"));
+      
+      try {
+        int read = socket.read(buffer);
+        if (read == -1) return context.nothing();
+        return context.toObj(read);
+      } catch (IOException e) {
+        throw context.error(Name.IO_ERROR, e.getMessage());
+      } catch (InterruptedException e) {
+        // TODO(bob): Better error.
+        throw context.error("Error", "Interrupted");
+      }
+    }
+  }
+
+  @Def("(is Socket) write(buffer is ByteBuffer)")
+  @Doc("Writes the contents of the ByteBuffer to the Socket.")
+  public static class Write_Buffer implements Intrinsic {
+    public Obj invoke(Context context, Obj left, Obj right) {
+      SocketWrapper socket = (SocketWrapper) left.getValue();
+      
+      try {
+        // Write from a duplicate so the buffer's position doesn't move.
+        socket.write(ByteBufferMethods.get(context, right).duplicate());
+        return context.nothing();
+      } catch (IOException e) {
+        throw context.error(Name.IO_ERROR, e.getMessage());
+      } catch (InterruptedException e) {
+        // TODO(bob): Better error.
+        throw context.error("Error", "Interrupted");
+      }
     }
   }
 
@@ -98,28 +218,146 @@ public class NetMethods {
     }
   }
   
+  /**
+   * A non-blocking socket. When it can't read or write, it parks the routine
+   * using it on the {@link EventLoop} instead of blocking a thread.
+   */
   private static class SocketWrapper {
-    public SocketWrapper(Socket socket) throws IOException {
-      mSocket = socket;
-      mIn = new BufferedReader(new InputStreamReader(socket.getInputStream()));
-      mOut = new PrintStream(mSocket.getOutputStream());
+    public SocketWrapper(SocketChannel channel) throws IOException {
+      mChannel = channel;
+      mChannel.configureBlocking(false);
+      
+      // Start out empty.
+      mIn.flip();
     }
     
     public void close() throws IOException {
-      mSocket.close();
+      EventLoop.close(mChannel);
     }
     
-    public String readLine() throws IOException {
-      return mIn.readLine();
+    /**
+     * Reads a line of text ending in "\n", "\r", or "\r\n", like
+     * BufferedReader does. Returns null at the end of the stream.
+     */
+    public String readLine() throws IOException, InterruptedException {
+      mReadLock.lock();
+      try {
+        mLine.reset();
+        
+        while (true) {
+          while (mIn.hasRemaining()) {
+            byte c = mIn.get();
+            
+            // Swallow the "\n" after a "\r".
+            if (mSkipNewline) {
+              mSkipNewline = false;
+              if (c == '\n') continue;
+            }
+            
+            if (c == '\n') return mLine.toString();
+            if (c == '\r') {
+              mSkipNewline = true;
+              return mLine.toString();
+            }
+            
+            mLine.write(c);
+          }
+          
+          if (!fill()) {
+            // Return the last line even if it isn't terminated.
+            if (mLine.size() > 0) return mLine.toString();
+            return null;
+          }
+        }
+      } finally {
+        mReadLock.unlock();
+      }
     }
     
-    public void write(String text) {
-      mOut.print(text);
+    /**
+     * Reads bytes into the space after the buffer's limit and moves its limit
+     * forward past them. Returns the number of bytes read, or -1 at the end of
+     * the stream.
+     */
+    public int read(ByteBuffer buffer)
+        throws IOException, InterruptedException {
+      int count = buffer.limit();
+      if (count == buffer.capacity()) return 0;
+      
+      mReadLock.lock();
+      try {
+        ByteBuffer target = buffer.duplicate();
+        target.limit(target.capacity());
+        target.position(count);
+        
+        int read;
+        if (mIn.hasRemaining()) {
+          // Use up anything readLine() has already read first.
+          read = Math.min(mIn.remaining(), target.remaining());
+          ByteBuffer source = mIn.duplicate();
+          source.limit(source.position() + read);
+          target.put(source);
+          mIn.position(mIn.position() + read);
+        } else {
+          // Read straight into the caller's buffer.
+          while ((read = mChannel.read(target)) == 0) {
+            EventLoop.await(mChannel, SelectionKey.OP_READ);
+          }
+          
+          if (read == -1) return -1;
+        }
+        
+        buffer.limit(count + read);
+        return read;
+      } finally {
+        mReadLock.unlock();
+      }
     }
     
-    private final Socket mSocket;
-    private final BufferedReader mIn;
-    private final PrintStream mOut;
+    public void write(String text) throws IOException, InterruptedException {
+      write(ByteBuffer.wrap(text.getBytes()));
+    }
+    
+    public void write(ByteBuffer buffer)
+        throws IOException, InterruptedException {
+      mWriteLock.lock();
+      try {
+        while (buffer.hasRemaining()) {
+          if (mChannel.write(buffer) == 0) {
+            EventLoop.await(mChannel, SelectionKey.OP_WRITE);
+          }
+        }
+      } finally {
+        mWriteLock.unlock();
+      }
+    }
+    
+    /**
+     * Reads more data into the input buffer, waiting until some is available.
+     * Returns false at the end of the stream.
+     */
+    private boolean fill() throws IOException, InterruptedException {
+      mIn.clear();
+      
+      int read;
+      while ((read = mChannel.read(mIn)) == 0) {
+        EventLoop.await(mChannel, SelectionKey.OP_READ);
+      }
+      
+      mIn.flip();
+      return read > 0;
+    }
+    
+    private final SocketChannel mChannel;
+    private final ByteBuffer mIn = ByteBuffer.allocate(8192);
+    private final ByteArrayOutputStream mLine = new ByteArrayOutputStream();
+    private boolean mSkipNewline = false;
+    
+    // These are locks instead of monitors because reading and writing park
+    // the routine, and parking a virtual thread inside a monitor pins its
+    // carrier thread.
+    private final Lock mReadLock = new ReentrantLock();
+    private final Lock mWriteLock = new ReentrantLock();
   }
   
   private static ClassObj sServerSocketClass;
@@ -1,10 +1,12 @@
 package com.stuffwithstuff.magpie.intrinsic;
 
 import java.io.File;
+import java.io.IOException;
 
 import com.stuffwithstuff.magpie.Def;
 import com.stuffwithstuff.magpie.Doc;
 import com.stuffwithstuff.magpie.interpreter.Context;
+import com.stuffwithstuff.magpie.interpreter.Name;
 import com.stuffwithstuff.magpie.interpreter.Obj;
 
 public class PathMethods {
@@ -52,4 +54,28 @@ public class PathMethods {
       return context.toObj(new File(path).isFile());
     }
   }
+
+  @Def("(is String) delete()")
+  @Doc("Deletes the file or empty directory at the path. Returns true if\n" +
+       "it was deleted.")
+  public static class String_Delete implements Intrinsic {
+    public Obj invoke(Context context, Obj left, Obj right) {
+      String path = left.asString();
+      return context.toObj(new File(path).delete());
+    }
+  }
+
+  @Def("tempFile(suffix is String)")
+  @Doc("Creates a new empty file in the system's temporary directory whose\n" +
+       "name ends with the given suffix. Returns its path.")
+  public static class TempFile implements Intrinsic {
+    public Obj invoke(Context context, Obj left, Obj right) {
+      try {
+        File file = File.createTempFile("magpie", right.asString());
+        return context.toObj(file.getPath());
+      } catch (IOException e) {
+        throw context.error(Name.IO_ERROR, "Could not create file.");
+      }
+    }
+  }
 }
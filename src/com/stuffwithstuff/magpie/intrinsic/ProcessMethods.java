@@ -2,7 +2,9 @@ package com.stuffwithstuff.magpie.intrinsic;
 
 import java.io.BufferedReader;
 import java.io.IOException;
+import java.io.InputStream;
 import java.io.InputStreamReader;
+import java.io.OutputStream;
 import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.List;
@@ -10,11 +12,25 @@ import java.util.Map;
 
 import com.stuffwithstuff.magpie.Def;
 import com.stuffwithstuff.magpie.Doc;
+import com.stuffwithstuff.magpie.interpreter.Channel;
+import com.stuffwithstuff.magpie.interpreter.ClassObj;
 import com.stuffwithstuff.magpie.interpreter.Context;
+import com.stuffwithstuff.magpie.interpreter.Name;
 import com.stuffwithstuff.magpie.interpreter.Obj;
+import com.stuffwithstuff.magpie.interpreter.Promise;
+import com.stuffwithstuff.magpie.interpreter.Scheduler;
 import com.stuffwithstuff.magpie.util.IO;
 
 public class ProcessMethods {
+  // TODO(bob): Hackish.
+  @Def("_setClasses(== Process)")
+  public static class SetClasses implements Intrinsic {
+    public Obj invoke(Context context, Obj left, Obj right) {
+      sProcessClass = right.asClass();
+      return context.nothing();
+    }
+  }
+
   @Def("execute(command is String)")
   @Doc("Spawns a new process, executes the given command in it, and waits " +
        "it to end. Returns the process's output and exit code.")
@@ -24,11 +40,28 @@ public class ProcessMethods {
 
       Runtime runtime = Runtime.getRuntime();
       try {
-        Process process = runtime.exec(command);
-        int exit = process.waitFor();
-        String output = IO.readAll(new BufferedReader(
-            new InputStreamReader(process.getInputStream())));
-        
+        final Process process = runtime.exec(command);
+
+        // Throw away the error output, but keep reading it so that the
+        // process doesn't block when the pipe fills up.
+        drain(process.getErrorStream());
+
+        // Read all of the output before waiting for the process to end. If
+        // we waited first, a process with more output than fits in the pipe
+        // would never end.
+        String output = Scheduler.block(new Scheduler.Blocker<String>() {
+          protected String perform() throws IOException {
+            return IO.readAll(new BufferedReader(
+                new InputStreamReader(process.getInputStream())));
+          }
+        });
+
+        int exit = Scheduler.block(new Scheduler.Blocker<Integer>() {
+          protected Integer perform() throws InterruptedException {
+            return process.waitFor();
+          }
+        });
+
         List<String> keys = new ArrayList<String>();
         keys.add("out");
         keys.add("exit");
@@ -36,15 +69,256 @@ public class ProcessMethods {
         Map<String, Obj> record = new HashMap<String, Obj>();
         record.put("out", context.toObj(output));
         record.put("exit", context.toObj(exit));
-        
+
         return context.toObj(keys, record);
       } catch (IOException e) {
         e.printStackTrace();
       } catch (InterruptedException e) {
         e.printStackTrace();
       }
+
+      return context.nothing();
+    }
+  }
+
+  @Def("spawn(command is String)")
+  @Doc("Starts a new process running the given command and returns a\n" +
+       "Process for it without waiting for it to end. Its output and error\n" +
+       "output are read as they're written, so it never blocks on them.")
+  public static class Spawn implements Intrinsic {
+    public Obj invoke(Context context, Obj left, Obj right) {
+      String command = right.asString();
+      if (command.trim().length() == 0) {
+        throw context.error(Name.ARGUMENT_ERROR, "The command is empty.");
+      }
       
+      try {
+        Process process = Runtime.getRuntime().exec(command);
+        return context.instantiate(sProcessClass,
+            new ChildProcess(context, process));
+      } catch (IOException e) {
+        throw context.error(Name.IO_ERROR, e.getMessage());
+      }
+    }
+  }
+
+  @Def("spawn(command is Array)")
+  @Doc("Starts a new process running the program named by the first\n" +
+       "String in the Array and passes it the rest as arguments. Unlike\n" +
+       "spawn(String), arguments containing spaces don't need quoting.")
+  public static class Spawn_Array implements Intrinsic {
+    public Obj invoke(Context context, Obj left, Obj right) {
+      List<Obj> args = right.asList();
+      if (args.isEmpty()) {
+        throw context.error(Name.ARGUMENT_ERROR, "The command is empty.");
+      }
+      
+      String[] command = new String[args.size()];
+      for (int i = 0; i < command.length; i++) {
+        if (!(args.get(i).getValue() instanceof String)) {
+          throw context.error(Name.ARGUMENT_ERROR,
+              "The command must be an Array of Strings.");
+        }
+        command[i] = args.get(i).asString();
+      }
+      
+      try {
+        Process process = Runtime.getRuntime().exec(command);
+        return context.instantiate(sProcessClass,
+            new ChildProcess(context, process));
+      } catch (IOException e) {
+        throw context.error(Name.IO_ERROR, e.getMessage());
+      }
+    }
+  }
+
+  @Def("(is Process) readLine()")
+  @Doc("Reads the next line the process wrote to standard output. Waits\n" +
+       "until one is available. Returns nothing once the output ends.")
+  public static class ReadLine implements Intrinsic {
+    public Obj invoke(Context context, Obj left, Obj right) {
+      ChildProcess process = (ChildProcess) left.getValue();
+      return process.readLine(context, process.getOutput());
+    }
+  }
+
+  @Def("(is Process) readErrorLine()")
+  @Doc("Reads the next line the process wrote to standard error. Waits\n" +
+       "until one is available. Returns nothing once the output ends.")
+  public static class ReadErrorLine implements Intrinsic {
+    public Obj invoke(Context context, Obj left, Obj right) {
+      ChildProcess process = (ChildProcess) left.getValue();
+      return process.readLine(context, process.getErrors());
+    }
+  }
+
+  @Def("(is Process) write(text is String)")
+  @Doc("Writes the given string to the process's standard input.")
+  public static class Write implements Intrinsic {
+    public Obj invoke(Context context, Obj left, Obj right) {
+      final OutputStream input = ((ChildProcess) left.getValue()).getInput();
+      final byte[] bytes = right.asString().getBytes();
+
+      try {
+        Scheduler.block(new Scheduler.Blocker<Void>() {
+          protected Void perform() throws IOException {
+            input.write(bytes);
+            input.flush();
+            return null;
+          }
+        });
+        return context.nothing();
+      } catch (IOException e) {
+        throw context.error(Name.IO_ERROR, e.getMessage());
+      } catch (InterruptedException e) {
+        // TODO(bob): Better error.
+        throw context.error("Error", "Interrupted");
+      }
+    }
+  }
+
+  @Def("(is Process) closeInput()")
+  @Doc("Closes the process's standard input, so that it sees the end of\n" +
+       "its input.")
+  public static class CloseInput implements Intrinsic {
+    public Obj invoke(Context context, Obj left, Obj right) {
+      ChildProcess process = (ChildProcess) left.getValue();
+      try {
+        process.getInput().close();
+        return context.nothing();
+      } catch (IOException e) {
+        throw context.error(Name.IO_ERROR, e.getMessage());
+      }
+    }
+  }
+
+  @Def("(is Process) exit")
+  @Doc("Gets a Future for the process's exit code. Call await() on it to\n" +
+       "wait for the process to end.")
+  public static class Exit implements Intrinsic {
+    public Obj invoke(Context context, Obj left, Obj right) {
+      ChildProcess process = (ChildProcess) left.getValue();
+      return AsyncMethods.toFuture(context, process.getExit());
+    }
+  }
+
+  @Def("(is Process) kill()")
+  @Doc("Stops the process.")
+  public static class Kill implements Intrinsic {
+    public Obj invoke(Context context, Obj left, Obj right) {
+      ChildProcess process = (ChildProcess) left.getValue();
+      process.kill();
       return context.nothing();
     }
   }
+
+  /**
+   * Starts a thread that reads everything from the stream and discards it.
+   */
+  private static void drain(final InputStream stream) {
+    startThread(new Runnable() {
+      public void run() {
+        byte[] buffer = new byte[8192];
+        try {
+          while (stream.read(buffer) != -1) {
+            // Do nothing.
+          }
+        } catch (IOException e) {
+          // The process is gone, so there's nothing left to drain.
+        }
+      }
+    }, "magpie-process-drain");
+  }
+
+  private static void startThread(Runnable runnable, String name) {
+    Thread thread = new Thread(runnable, name);
+
+    // Don't keep Magpie running just because a child process is.
+    thread.setDaemon(true);
+    thread.start();
+  }
+
+  /**
+   * A running process. Each of its output streams has a thread reading
+   * lines from it into a channel, so the process can't block on a full pipe
+   * no matter which stream the Magpie code is reading, or if it reads
+   * neither. The end of a stream is marked by sending nothing.
+   */
+  private static class ChildProcess {
+    public ChildProcess(final Context context, final Process process) {
+      mProcess = process;
+
+      pump(context, process.getInputStream(), mOutput);
+      pump(context, process.getErrorStream(), mErrors);
+
+      startThread(new Runnable() {
+        public void run() {
+          try {
+            mExit.complete(context.toObj(process.waitFor()));
+          } catch (InterruptedException e) {
+            mExit.fail(context.getInterpreter().createError("Error",
+                "Interrupted"));
+          }
+        }
+      }, "magpie-process-exit");
+    }
+
+    public Channel getOutput() { return mOutput; }
+    public Channel getErrors() { return mErrors; }
+    public OutputStream getInput() { return mProcess.getOutputStream(); }
+    public Promise getExit() { return mExit; }
+
+    public void kill() {
+      mProcess.destroy();
+    }
+
+    public Obj readLine(Context context, Channel channel) {
+      try {
+        Obj line = channel.receive();
+
+        // Put the end marker back so that later reads see it too.
+        if (line == context.nothing()) channel.send(line);
+        return line;
+      } catch (InterruptedException e) {
+        // TODO(bob): Better error.
+        throw context.error("Error", "Interrupted");
+      }
+    }
+
+    private void pump(final Context context, final InputStream stream,
+        final Channel channel) {
+      startThread(new Runnable() {
+        public void run() {
+          BufferedReader reader = new BufferedReader(
+              new InputStreamReader(stream));
+          try {
+            String line;
+            while ((line = reader.readLine()) != null) {
+              channel.send(context.toObj(line));
+            }
+          } catch (IOException e) {
+            // The process is gone, so treat it like the end of the output.
+          } catch (InterruptedException e) {
+            // Likewise.
+          }
+
+          try {
+            channel.send(context.nothing());
+          } catch (InterruptedException e) {
+            // The channel is unbounded, so this can't block.
+          }
+        }
+      }, "magpie-process-pump");
+    }
+
+    private final Process mProcess;
+
+    // These are unbounded so that the pumps never stop reading, even if the
+    // Magpie code never reads one of the streams.
+    private final Channel mOutput = new Channel();
+    private final Channel mErrors = new Channel();
+    private final Promise mExit = new Promise();
+  }
+
+  private static ClassObj sProcessClass;
 }
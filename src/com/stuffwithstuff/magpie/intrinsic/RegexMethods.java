@@ -13,6 +13,7 @@ import com.stuffwithstuff.magpie.interpreter.ClassObj;
 import com.stuffwithstuff.magpie.interpreter.Context;
 import com.stuffwithstuff.magpie.interpreter.Name;
 import com.stuffwithstuff.magpie.interpreter.Obj;
+import com.stuffwithstuff.magpie.util.PatternCache;
 
 public class RegexMethods {
   @Def("_setClasses(== Regex, == MatchResult)")
@@ -38,7 +39,7 @@ public class RegexMethods {
     @Override
     public Obj invoke(Context context, Obj left, Obj right) {
       int modifiers = extractModifiers(right.getField(1).asString(), context);
-      Pattern pattern = Pattern.compile(
+      Pattern pattern = PatternCache.get(
           right.getField(0).asString(), modifiers);
       return context.instantiate(sRegexClass, pattern);
     }
@@ -60,6 +61,21 @@ public class RegexMethods {
     }
   }
 
+  @Def("(this is String) split(regex is Regex)")
+  @Doc("Splits the string at every match of the regular expression and " +
+       "returns an array of the substrings between them.")
+  public static class Split implements Intrinsic {
+    @Override
+    public Obj invoke(Context context, Obj left, Obj right) {
+      Pattern pattern = (Pattern)right.getValue();
+      List<Obj> elements = new ArrayList<Obj>();
+      for (String part : pattern.split(left.asString())) {
+        elements.add(context.toObj(part));
+      }
+      return context.toArray(elements);
+    }
+  }
+
   @Def("(this is String) find(regex is Regex)")
   @Doc("Returns a MatchResult for the first occurrence of the regular " +
        "expression in this String or nothing if it is not found.")
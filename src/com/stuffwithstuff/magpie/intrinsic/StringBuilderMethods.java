@@ -0,0 +1,67 @@
+package com.stuffwithstuff.magpie.intrinsic;
+
+import com.stuffwithstuff.magpie.Def;
+import com.stuffwithstuff.magpie.Doc;
+import com.stuffwithstuff.magpie.interpreter.ClassObj;
+import com.stuffwithstuff.magpie.interpreter.Context;
+import com.stuffwithstuff.magpie.interpreter.Obj;
+
+public class StringBuilderMethods {
+  // TODO(bob): Hackish.
+  @Def("_setClasses(== StringBuilder)")
+  public static class SetClasses implements Intrinsic {
+    public Obj invoke(Context context, Obj left, Obj right) {
+      sStringBuilderClass = right.asClass();
+      return context.nothing();
+    }
+  }
+
+  @Def("(== StringBuilder) new()")
+  @Doc("Creates a new empty StringBuilder.")
+  public static class New implements Intrinsic {
+    public Obj invoke(Context context, Obj left, Obj right) {
+      return context.instantiate(sStringBuilderClass, new StringBuilder());
+    }
+  }
+
+  @Def("(is StringBuilder) append(text is String)")
+  @Doc("Adds the string to the end of the StringBuilder. Returns the\n" +
+       "StringBuilder.")
+  public static class Append implements Intrinsic {
+    public Obj invoke(Context context, Obj left, Obj right) {
+      StringBuilder builder = (StringBuilder)left.getValue();
+      builder.append(right.asString());
+      return left;
+    }
+  }
+
+  @Def("(is StringBuilder) count")
+  @Doc("Gets the number of characters appended so far.")
+  public static class Count implements Intrinsic {
+    public Obj invoke(Context context, Obj left, Obj right) {
+      StringBuilder builder = (StringBuilder)left.getValue();
+      return context.toObj(builder.length());
+    }
+  }
+
+  @Def("(is StringBuilder) clear()")
+  @Doc("Removes everything from the StringBuilder.")
+  public static class Clear implements Intrinsic {
+    public Obj invoke(Context context, Obj left, Obj right) {
+      StringBuilder builder = (StringBuilder)left.getValue();
+      builder.setLength(0);
+      return context.nothing();
+    }
+  }
+
+  @Def("(is StringBuilder) toString")
+  @Doc("Returns everything appended so far as a single string.")
+  public static class ToString implements Intrinsic {
+    public Obj invoke(Context context, Obj left, Obj right) {
+      StringBuilder builder = (StringBuilder)left.getValue();
+      return context.toObj(builder.toString());
+    }
+  }
+
+  private static ClassObj sStringBuilderClass;
+}
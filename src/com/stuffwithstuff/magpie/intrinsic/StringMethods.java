@@ -2,7 +2,6 @@ package com.stuffwithstuff.magpie.intrinsic;
 
 import java.util.ArrayList;
 import java.util.List;
-import java.util.regex.Matcher;
 
 import com.stuffwithstuff.magpie.Def;
 import com.stuffwithstuff.magpie.Doc;
@@ -42,7 +41,14 @@ public class StringMethods {
   @Doc("Concatenates the two strings.")
   public static class Add implements Intrinsic {
     public Obj invoke(Context context, Obj left, Obj right) {
-      return context.toObj(left.asString() + right.asString());
+      // Adding an empty string doesn't need a new one.
+      String rightString = right.asString();
+      if (rightString.length() == 0) return left;
+      
+      String leftString = left.asString();
+      if (leftString.length() == 0) return right;
+      
+      return context.toObj(leftString + rightString);
     }
   }
   
@@ -89,16 +95,18 @@ public class StringMethods {
   
   // TODO(bob): Need to make this line up with Regex replace/replaceAll.
   @Def("(string is String) replace(before is String, with: after is String)")
-  @Doc("Replaces each instance of before with after.")
+  @Doc("Replaces each instance of before with after. Both are plain\n" +
+       "text, not regular expressions.")
   public static class Replace implements Intrinsic {
     public Obj invoke(Context context, Obj left, Obj right) {
       String string = left.asString();
       String before = right.getField(0).asString();
       String after = right.getField("with").asString();
       
-      // TODO(bob): Should just be replacing a string, not a pattern.
-      return context.toObj(
-          string.replaceAll(before, Matcher.quoteReplacement(after)));
+      // Don't make a new string if there's nothing to replace.
+      String result = replace(string, before, after);
+      if (result == string) return left;
+      return context.toObj(result);
     }
   }
   
@@ -150,15 +158,48 @@ public class StringMethods {
   
   @Def("(is String) split(separator is String)")
   @Doc("Splits the string at every occurrence of the given separator and\n" +
-       "returns an array of the given substrings.")
+       "returns an array of the given substrings. The separator is plain\n" +
+       "text, not a regular expression. Empty strings at the end are\n" +
+       "removed.")
   public static class Split implements Intrinsic {
     public Obj invoke(Context context, Obj left, Obj right) {
-      String[] parts = left.asString().split(right.asString());
+      String string = left.asString();
+      String separator = right.asString();
+      
       List<Obj> elements = new ArrayList<Obj>();
-      for (String part : parts) {
-        elements.add(context.toObj(part));
+      
+      // An empty separator splits between every character.
+      if (separator.length() == 0) {
+        if (string.length() == 0) elements.add(left);
+        for (int i = 0; i < string.length(); i++) {
+          elements.add(context.toObj(string.substring(i, i + 1)));
+        }
+        return context.toArray(elements);
+      }
+      
+      int start = 0;
+      int index;
+      while ((index = string.indexOf(separator, start)) != -1) {
+        elements.add(context.toObj(string.substring(start, index)));
+        start = index + separator.length();
       }
-      return context.toArray(elements);
+      
+      // If the separator never appears, the result is just the string.
+      if (start == 0) {
+        elements.add(left);
+        return context.toArray(elements);
+      }
+      
+      elements.add(context.toObj(string.substring(start)));
+      
+      // Like Java's String.split(), drop empty strings at the end.
+      int count = elements.size();
+      while ((count > 0) &&
+             (elements.get(count - 1).asString().length() == 0)) {
+        count--;
+      }
+      
+      return context.toArray(new ArrayList<Obj>(elements.subList(0, count)));
     }
   }
   
@@ -170,4 +211,29 @@ public class StringMethods {
       return context.toObj(string.trim());
     }
   }
+  
+  /**
+   * Replaces every occurrence of before in string with after, without going
+   * through a regular expression. Returns the original string if before
+   * doesn't appear in it.
+   */
+  private static String replace(String string, String before, String after) {
+    // Inserting between every character is a strange enough case to leave to
+    // Java.
+    if (before.length() == 0) return string.replace(before, after);
+    
+    int index = string.indexOf(before);
+    if (index == -1) return string;
+    
+    StringBuilder builder = new StringBuilder(string.length());
+    int start = 0;
+    do {
+      builder.append(string, start, index).append(after);
+      start = index + before.length();
+      index = string.indexOf(before, start);
+    } while (index != -1);
+    
+    builder.append(string, start, string.length());
+    return builder.toString();
+  }
 }
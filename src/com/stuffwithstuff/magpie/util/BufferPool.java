@@ -0,0 +1,99 @@
+package com.stuffwithstuff.magpie.util;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+/**
+ * Hands out direct ByteBuffers and takes them back when they're released so
+ * that they can be reused. Direct buffers are expensive to allocate and free,
+ * but the OS can read and write them without an extra copy.
+ *
+ * <p>Buffers are pooled in power-of-two sizes, so a buffer may have more
+ * capacity than was asked for.
+ */
+public class BufferPool {
+  /**
+   * The largest buffer that can be acquired.
+   */
+  public static final int MAX_CAPACITY = 1 << 30;
+
+  /**
+   * Gets a buffer with at least the given capacity, which must be from zero
+   * to MAX_CAPACITY. It will be empty: its position and limit will both be
+   * zero.
+   */
+  public static ByteBuffer acquire(int capacity) {
+    int size = sizeFor(capacity);
+
+    ByteBuffer buffer = null;
+    BlockingQueue<ByteBuffer> pool = poolFor(size);
+    if (pool != null) buffer = pool.poll();
+    if (buffer == null) buffer = ByteBuffer.allocateDirect(size);
+
+    buffer.clear();
+    buffer.limit(0);
+    return buffer;
+  }
+
+  /**
+   * Returns a buffer to the pool. The caller must not use it afterwards.
+   */
+  public static void release(ByteBuffer buffer) {
+    // Only take back buffers that came from here.
+    if (!buffer.isDirect() || buffer.isReadOnly()) return;
+    if (buffer.capacity() != sizeFor(buffer.capacity())) return;
+
+    BlockingQueue<ByteBuffer> pool = poolFor(buffer.capacity());
+
+    // If the pool is already full, let the GC have it.
+    if (pool != null) pool.offer(buffer);
+  }
+
+  private static int sizeFor(int capacity) {
+    if (capacity <= MIN_SIZE) return MIN_SIZE;
+
+    // Buffers that big aren't pooled, so there's no point in rounding up.
+    if (capacity > MAX_SIZE) return capacity;
+
+    // Round up to the next power of two.
+    int size = Integer.highestOneBit(capacity);
+    if (size < capacity) size <<= 1;
+    return size;
+  }
+
+  /**
+   * Gets the pool for buffers of the given size, or null if buffers that big
+   * aren't pooled.
+   */
+  private static BlockingQueue<ByteBuffer> poolFor(int size) {
+    if (size > MAX_SIZE) return null;
+
+    int index = Integer.numberOfTrailingZeros(size) -
+        Integer.numberOfTrailingZeros(MIN_SIZE);
+    if (index >= sPools.length) return null;
+
+    return sPools[index];
+  }
+
+  private BufferPool() {}
+
+  private static final int MIN_SIZE = 4096;
+  private static final int MAX_SIZE = 1024 * 1024;
+  private static final int BUFFERS_PER_SIZE = 64;
+
+  private static final BlockingQueue<ByteBuffer>[] sPools;
+
+  static {
+    int count = Integer.numberOfTrailingZeros(MAX_SIZE) -
+        Integer.numberOfTrailingZeros(MIN_SIZE) + 1;
+
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    BlockingQueue<ByteBuffer>[] pools = new BlockingQueue[count];
+    for (int i = 0; i < count; i++) {
+      pools[i] = new ArrayBlockingQueue<ByteBuffer>(BUFFERS_PER_SIZE);
+    }
+
+    sPools = pools;
+  }
+}
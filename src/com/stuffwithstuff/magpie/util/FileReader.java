@@ -50,6 +50,29 @@ public class FileReader {
     return IO.readAll(mReader);
   }
   
+  /**
+   * Reads up to the given number of characters. Returns null at the end of
+   * the file. The same buffer is used for every chunk, so reading a file this
+   * way only needs as much memory as one chunk.
+   */
+  public String readChunk(int size) throws IOException {
+    if ((mChunk == null) || (mChunk.length < size)) {
+      mChunk = new char[size];
+    }
+    
+    // Fill the whole chunk unless we hit the end of the file.
+    int count = 0;
+    while (count < size) {
+      int read = mReader.read(mChunk, count, size - count);
+      if (read == -1) break;
+      count += read;
+    }
+    
+    if (count == 0) return null;
+    return new String(mChunk, 0, count);
+  }
+  
   private FileInputStream mStream;
   private BufferedReader mReader;
+  private char[] mChunk;
 }
\ No newline at end of file
@@ -1,56 +1,156 @@
 package com.stuffwithstuff.magpie.util;
 
-import java.io.DataOutputStream;
 import java.io.FileOutputStream;
 import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Collections;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 
+/**
+ * Writes binary data to a file. Values are packed into a large buffer that is
+ * written to the file when it fills up, when flush() is called, or when the
+ * file is closed. Files that are still open when the process exits are closed
+ * then, so nothing that was written is lost.
+ */
 public class FileWriter {
   public FileWriter(String path) throws IOException {
-    mStream = new DataOutputStream(new FileOutputStream(path));
+    mStream = new FileOutputStream(path);
+    mChannel = mStream.getChannel();
+    sOpenWriters.add(this);
   }
   
   public boolean isOpen() {
     return mStream != null;
   }
   
-  public void close() {
+  /**
+   * Writes anything still buffered and closes the file. The file is closed
+   * even if that last write fails, in which case the error is rethrown.
+   */
+  public void close() throws IOException {
     // Do nothing if already closed.
     if (mStream == null) return;
     
+    FileOutputStream stream = mStream;
+    mStream = null;
+    sOpenWriters.remove(this);
     try {
-      mStream.close();
-      mStream = null;
-    } catch (IOException e) {
-      // TODO Auto-generated catch block
-      e.printStackTrace();
+      drain();
+    } finally {
+      stream.close();
     }
   }
   
+  /**
+   * Writes everything that has been buffered so far to the file.
+   */
+  public void flush() throws IOException {
+    ensureOpen();
+    drain();
+  }
+  
   public void writeByte(int value) throws IOException {
-    mStream.writeByte(value);
+    reserve(1);
+    mBuffer.put((byte) value);
   }
   
   public void writeInt32(int value) throws IOException {
-    mStream.writeInt(value);
+    reserve(4);
+    mBuffer.putInt(value);
   }
   
   public void writeUInt16(int value) throws IOException {
+    reserve(2);
+    
     // Little endian.
-    mStream.writeByte(value & 0x00ff);
-    mStream.writeByte((value & 0xff00) >> 8);
+    mBuffer.put((byte) (value & 0x00ff));
+    mBuffer.put((byte) ((value & 0xff00) >> 8));
   }
   
   public void writeUInt32(int value) throws IOException {
+    reserve(4);
+    
     // Little endian.
-    mStream.writeByte(value & 0x000000ff);
-    mStream.writeByte((value & 0x0000ff00) >>  8);
-    mStream.writeByte((value & 0x00ff0000) >> 16);
-    mStream.writeByte((value & 0xff000000) >> 24);
+    mBuffer.put((byte) (value & 0x000000ff));
+    mBuffer.put((byte) ((value & 0x0000ff00) >>  8));
+    mBuffer.put((byte) ((value & 0x00ff0000) >> 16));
+    mBuffer.put((byte) ((value & 0xff000000) >> 24));
   }
   
   public void writeDouble(double value) throws IOException {
-    mStream.writeDouble(value);
+    reserve(8);
+    mBuffer.putDouble(value);
   }
-
-  private DataOutputStream mStream;
-}
\ No newline at end of file
+  
+  /**
+   * Writes the contents of the buffer (from its position to its limit)
+   * without packing them one at a time.
+   */
+  public void writeBytes(ByteBuffer bytes) throws IOException {
+    ensureOpen();
+    
+    // Small writes are cheaper to copy into the buffer than to write alone.
+    if (bytes.remaining() <= mBuffer.remaining()) {
+      mBuffer.put(bytes);
+      return;
+    }
+    
+    drain();
+    while (bytes.hasRemaining()) {
+      mChannel.write(bytes);
+    }
+  }
+  
+  /**
+   * Makes sure there is room in the buffer for the given number of bytes,
+   * flushing it if there isn't.
+   */
+  private void reserve(int bytes) throws IOException {
+    ensureOpen();
+    if (mBuffer.remaining() < bytes) drain();
+  }
+  
+  private void ensureOpen() throws IOException {
+    if (mStream == null) throw new IOException("The file is closed.");
+  }
+  
+  private void drain() throws IOException {
+    mBuffer.flip();
+    while (mBuffer.hasRemaining()) {
+      mChannel.write(mBuffer);
+    }
+    mBuffer.clear();
+  }
+  
+  /**
+   * Closes every writer the script didn't close itself.
+   */
+  private static void closeAll() {
+    for (FileWriter writer : sOpenWriters) {
+      try {
+        writer.close();
+      } catch (IOException ex) {
+        // The process is exiting, so there's no one left to tell.
+      }
+    }
+  }
+  
+  private static final int BUFFER_SIZE = 64 * 1024;
+  
+  private static final Set<FileWriter> sOpenWriters =
+      Collections.newSetFromMap(new ConcurrentHashMap<FileWriter, Boolean>());
+  
+  static {
+    Runtime.getRuntime().addShutdownHook(new Thread() {
+      public void run() {
+        closeAll();
+      }
+    });
+  }
+  
+  private FileOutputStream mStream;
+  private final FileChannel mChannel;
+  private final ByteBuffer mBuffer = ByteBuffer.allocateDirect(BUFFER_SIZE);
+}
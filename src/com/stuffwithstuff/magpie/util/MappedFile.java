@@ -0,0 +1,130 @@
+package com.stuffwithstuff.magpie.util;
+
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * A read-only, memory-mapped view of a file. Instead of mapping the whole file
+ * at once (which Java can't do for files over 2GB), it maps a window of it at
+ * a time and slides the window along as needed. Bytes are never copied out of
+ * the mapping: slices and lines are views into it.
+ */
+public class MappedFile {
+  public MappedFile(String path) throws IOException {
+    mFile = new RandomAccessFile(path, "r");
+    mChannel = mFile.getChannel();
+    mSize = mChannel.size();
+  }
+
+  public long size() { return mSize; }
+
+  public boolean isOpen() { return mChannel.isOpen(); }
+
+  public synchronized void close() throws IOException {
+    mFile.close();
+    mWindow = null;
+  }
+
+  public synchronized byte get(long index) throws IOException {
+    map(index, 1);
+    return mWindow.get((int) (index - mWindowStart));
+  }
+
+  /**
+   * Gets a read-only view of the given range of the file. Its position will
+   * be zero and its limit will be the count.
+   */
+  public synchronized ByteBuffer slice(long from, int count)
+      throws IOException {
+    map(from, count);
+    return view(from, count);
+  }
+
+  /**
+   * Reads the next line from the file as a view of its bytes, without the
+   * line terminator ("\n", "\r\n", or "\r"). Returns null at the end of the
+   * file.
+   */
+  public synchronized ByteBuffer readLine() throws IOException {
+    if (mLineStart >= mSize) return null;
+
+    long start = mLineStart;
+    long scan = start;
+    while (true) {
+      map(scan, 1);
+
+      long windowEnd = mWindowStart + mWindow.limit();
+      while (scan < windowEnd) {
+        byte c = mWindow.get((int) (scan - mWindowStart));
+        if (c == '\n' || c == '\r') {
+          mLineStart = scan + 1;
+
+          // Treat "\r\n" as a single terminator.
+          if (c == '\r' && mLineStart < mSize && get(mLineStart) == '\n') {
+            mLineStart++;
+          }
+
+          return slice(start, lineLength(start, scan));
+        }
+        scan++;
+      }
+
+      if (scan == mSize) {
+        // The last line doesn't have a terminator.
+        mLineStart = mSize;
+        return slice(start, lineLength(start, scan));
+      }
+
+      // Keep looking in the next window.
+    }
+  }
+
+  /**
+   * Makes sure the given range of the file is in the current window, mapping
+   * a new one if not.
+   */
+  private void map(long from, int count) throws IOException {
+    if (!mChannel.isOpen()) throw new IOException("The file is closed.");
+
+    if ((from < 0) || (count < 0) || (from + count > mSize)) {
+      throw new IndexOutOfBoundsException();
+    }
+
+    if ((mWindow != null) && (from >= mWindowStart) &&
+        (from + count <= mWindowStart + mWindow.limit())) {
+      return;
+    }
+
+    long size = Math.min(Math.max(WINDOW_SIZE, count), mSize - from);
+    mWindow = mChannel.map(FileChannel.MapMode.READ_ONLY, from, size);
+    mWindowStart = from;
+  }
+
+  private ByteBuffer view(long from, int count) {
+    ByteBuffer view = mWindow.duplicate();
+    view.position((int) (from - mWindowStart));
+    view.limit(view.position() + count);
+    return view.slice();
+  }
+
+  private static int lineLength(long start, long end) throws IOException {
+    if (end - start > Integer.MAX_VALUE) {
+      throw new IOException("Line is too long.");
+    }
+
+    return (int) (end - start);
+  }
+
+  private static final int WINDOW_SIZE = 64 * 1024 * 1024;
+
+  private final RandomAccessFile mFile;
+  private final FileChannel mChannel;
+  private final long mSize;
+
+  private MappedByteBuffer mWindow;
+  private long mWindowStart;
+  private long mLineStart = 0;
+}
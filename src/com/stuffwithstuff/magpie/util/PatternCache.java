@@ -0,0 +1,73 @@
+package com.stuffwithstuff.magpie.util;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.regex.Pattern;
+
+/**
+ * Keeps the most recently used compiled regular expressions around so that
+ * code that uses the same pattern over and over doesn't recompile it each
+ * time.
+ */
+public class PatternCache {
+  /**
+   * Gets the compiled pattern for the given regular expression and flags,
+   * compiling it if it isn't in the cache.
+   */
+  public static Pattern get(String regex, int flags) {
+    Key key = new Key(regex, flags);
+
+    synchronized (sCache) {
+      Pattern pattern = sCache.get(key);
+      if (pattern != null) return pattern;
+    }
+
+    // Compile outside of the lock. If two threads race to compile the same
+    // pattern, they'll just both do it.
+    Pattern pattern = Pattern.compile(regex, flags);
+
+    synchronized (sCache) {
+      sCache.put(key, pattern);
+    }
+
+    return pattern;
+  }
+
+  private PatternCache() {}
+
+  private static class Key {
+    public Key(String regex, int flags) {
+      mRegex = regex;
+      mFlags = flags;
+    }
+
+    @Override
+    public boolean equals(Object other) {
+      if (!(other instanceof Key)) return false;
+
+      Key key = (Key) other;
+      return (mFlags == key.mFlags) && mRegex.equals(key.mRegex);
+    }
+
+    @Override
+    public int hashCode() {
+      return mRegex.hashCode() * 31 + mFlags;
+    }
+
+    private final String mRegex;
+    private final int mFlags;
+  }
+
+  private static final int MAX_SIZE = 256;
+
+  // Access-ordered, so the eldest entry is the least recently used one.
+  private static final Map<Key, Pattern> sCache =
+      new LinkedHashMap<Key, Pattern>(MAX_SIZE, 0.75f, true) {
+        private static final long serialVersionUID = 1L;
+
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<Key, Pattern> eldest) {
+          return size() > MAX_SIZE;
+        }
+      };
+}